@@ -4,83 +4,177 @@ package MapReduceKafka;
  * MasterKafka.java
  * Reads a text file, sends each line to the "map-topic", and then
  * consumes intermediate counts from "reduce-topic" to aggregate final word frequencies.
+ *
+ * Completion is explicit: after the last line, the master appends an end-of-input
+ * marker (a record carrying the END_OF_INPUT header) to every partition of
+ * map-topic. A worker reaching a marker flushes its counts, then echoes the
+ * marker to every partition of reduce-topic. A reduce partition is complete once
+ * it has seen the echoes of all map partitions. The reduce side runs one consumer
+ * thread per reduce-topic partition, each aggregating its own key range.
+ *
+ * Echoed markers also carry the metrics of the worker that sent them; they are
+ * written with the master's own metrics to a JSON job report.
  */
 import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.Header;
 import org.apache.kafka.common.serialization.IntegerDeserializer;
-import org.apache.kafka.common.serialization.IntegerSerializer;
 import org.apache.kafka.common.serialization.StringDeserializer;
 import org.apache.kafka.common.serialization.StringSerializer;
 
+import mapreduce.InputFiles;
+import mapreduce.InputFormat;
+import mapreduce.JobReport;
+import mapreduce.Metrics;
+import mapreduce.WordCounter;
+
 import java.io.BufferedReader;
-import java.io.FileReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
 
 public class MasterKafka {
     private static final String MAP_TOPIC = "map-topic";
     private static final String REDUCE_TOPIC = "reduce-topic";
+    // Header of end-of-input markers: "<job>" on map-topic, "<job>:<map partition>" when echoed on reduce-topic
+    static final String END_OF_INPUT = "mapreduce.eof";
+    // Headers of echoed markers: worker name and its metrics (JSON)
+    static final String WORKER = "mapreduce.worker";
+    static final String METRICS = "mapreduce.metrics";
 
     public static void main(String[] args) throws Exception {
         if (args.length < 1) {
-            System.err.println("Usage: MasterKafka <input-file>");
+            System.err.println("Usage: MasterKafka <input-file|directory|glob>");
             System.exit(1);
         }
         String inputFile = args[0];
+        List<Path> inputs = InputFiles.resolve(inputFile);
+        String bootstrap = System.getProperty("mapreduce.kafka.bootstrap", "localhost:9092");
+        // Markers of earlier jobs still in the topics are ignored
+        String job = UUID.randomUUID().toString();
+        JobReport report = new JobReport("MasterKafka");
+        report.parameter("input", inputFile);
+        report.parameter("files", inputs.size());
+        report.parameter("job", job);
+        Metrics metrics = report.master();
+        long mapStart = System.nanoTime();
 
         // Configure producer for map stage
         Properties prodProps = new Properties();
-        prodProps.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, "localhost:9092");
+        prodProps.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrap);
         prodProps.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
         prodProps.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
         KafkaProducer<String, String> producer = new KafkaProducer<>(prodProps);
 
-        // Read file and send each line as a message
-        try (BufferedReader br = new BufferedReader(new FileReader(inputFile))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                producer.send(new ProducerRecord<>(MAP_TOPIC, null, line));
+        // Read every file and send each line as a message (only the text payloads of a WET or .warc.wet.gz file)
+        for (Path input : inputs) {
+            try (BufferedReader br = InputFormat.of(input).reader(input)) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    producer.send(new ProducerRecord<>(MAP_TOPIC, null, line));
+                    metrics.increment("lines.sent");
+                }
             }
+            metrics.increment("files.sent");
+        }
+        // Then one end-of-input marker per map partition, after its last line
+        int mapPartitions = producer.partitionsFor(MAP_TOPIC).size();
+        for (int p = 0; p < mapPartitions; p++) {
+            ProducerRecord<String, String> marker = new ProducerRecord<>(MAP_TOPIC, p, null, null);
+            marker.headers().add(END_OF_INPUT, job.getBytes(StandardCharsets.UTF_8));
+            producer.send(marker);
         }
         producer.flush();
         producer.close();
+        metrics.time("phase.send", mapStart);
         System.out.println("All lines sent to map-topic.");
+        long reduceStart = System.nanoTime();
 
-        // Configure consumer for reduce stage
+        // Configure consumers for reduce stage: one thread per reduce partition
         Properties consProps = new Properties();
-        consProps.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, "localhost:9092");
+        consProps.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrap);
         consProps.put(ConsumerConfig.GROUP_ID_CONFIG, "master-reducer");
         consProps.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
         consProps.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, IntegerDeserializer.class.getName());
         consProps.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
-        KafkaConsumer<String, Integer> consumer = new KafkaConsumer<>(consProps);
-        consumer.subscribe(Collections.singletonList(REDUCE_TOPIC));
-
-        // Aggregate counts
-        Map<String, Integer> finalCounts = new HashMap<>();
-        boolean polling = true;
-        while (polling) {
-            ConsumerRecords<String, Integer> records = consumer.poll(Duration.ofSeconds(5));
-            if (records.isEmpty()) {
-                // assume no more messages
-                polling = false;
-            } else {
-                records.forEach(r -> {
-                    finalCounts.merge(r.key(), r.value(), Integer::sum);
-                });
-            }
+        int reducePartitions;
+        try (KafkaConsumer<String, Integer> probe = new KafkaConsumer<>(consProps)) {
+            reducePartitions = probe.partitionsFor(REDUCE_TOPIC).size();
+        }
+        // Words are keyed records: each partition holds a disjoint set of words
+        List<WordCounter> partitionCounts = new ArrayList<>();
+        List<Thread> reducers = new ArrayList<>();
+        for (int p = 0; p < reducePartitions; p++) {
+            WordCounter counts = new WordCounter();
+            TopicPartition partition = new TopicPartition(REDUCE_TOPIC, p);
+            Thread reducer = new Thread(() -> reducePartition(consProps, partition, job, mapPartitions, counts, report));
+            partitionCounts.add(counts);
+            reducers.add(reducer);
+            reducer.start();
+        }
+        for (Thread reducer : reducers) {
+            reducer.join();
         }
-        consumer.close();
+        metrics.time("phase.reduce", reduceStart);
 
         // Print results
         System.out.println("Word counts:");
-        finalCounts.forEach((word, count) -> System.out.println(word + ": " + count));
+        for (WordCounter counts : partitionCounts) {
+            counts.forEach((arena, off, len, count) ->
+                    System.out.println(new String(arena, off, len, StandardCharsets.ISO_8859_1) + ": " + count));
+        }
+        report.write(JobReport.pathFromSystemProperty());
+    }
+
+    /**
+     * Aggregate one reduce-topic partition until the markers of every map partition have been echoed to it.
+     */
+    private static void reducePartition(Properties consProps, TopicPartition partition, String job,
+                                        int mapPartitions, WordCounter counts, JobReport report) {
+        long start = System.nanoTime();
+        long received = 0;
+        Set<String> ended = new HashSet<>();
+        try (KafkaConsumer<String, Integer> consumer = new KafkaConsumer<>(consProps)) {
+            consumer.assign(Collections.singletonList(partition));
+            while (ended.size() < mapPartitions) {
+                ConsumerRecords<String, Integer> records = consumer.poll(Duration.ofMillis(500));
+                for (ConsumerRecord<String, Integer> r : records) {
+                    Header eof = r.headers().lastHeader(END_OF_INPUT);
+                    if (eof == null) {
+                        counts.add(r.key(), r.value());
+                        received++;
+                        continue;
+                    }
+                    String[] marker = new String(eof.value(), StandardCharsets.UTF_8).split(":");
+                    if (marker[0].equals(job)) {
+                        ended.add(marker[1]);
+                        Header worker = r.headers().lastHeader(WORKER);
+                        Header workerMetrics = r.headers().lastHeader(METRICS);
+                        if (worker != null && workerMetrics != null) {
+                            report.node(new String(worker.value(), StandardCharsets.UTF_8),
+                                    new String(workerMetrics.value(), StandardCharsets.UTF_8));
+                        }
+                    }
+                }
+            }
+            consumer.commitSync();
+        }
+        Metrics metrics = report.master();
+        metrics.increment("reduce.records." + partition.partition(), received);
+        metrics.increment("reduce.keys." + partition.partition(), counts.size());
+        metrics.time("reduce.partition", start);
     }
 }
\ No newline at end of file
@@ -0,0 +1,472 @@
+package MapReduceKafka;
+
+/*
+ * TestKafkaMapReduce.java
+ * Runs MasterKafka and a WorkerKafka against a ZooKeeper and a Kafka broker
+ * started in this JVM (free local ports, data in a temporary directory). A
+ * second worker joins the group once the first has committed, so partitions
+ * are revoked and reassigned mid-job. Then checks what went through the topics:
+ *   - the second worker was given partitions before the job was over;
+ *   - the counts on reduce-topic add up to an exact count of the input, nothing
+ *     published twice across the rebalance, and the window sent fewer records
+ *     than there are tokens;
+ *   - offsets are committed only after a flush: whenever map-topic offsets are
+ *     seen committed, the counts of every line before them are on reduce-topic;
+ *   - every end-of-input marker is echoed, with the worker metrics, to every
+ *     reduce partition, after the last count of that partition.
+ *
+ * The broker is a provided dependency, left out of the runtime classpath, and this
+ * class is filtered out of the uber jar; the test classpath holds the broker along
+ * with the runtime dependencies:
+ *   mvn compile exec:java -Dexec.mainClass=MapReduceKafka.TestKafkaMapReduce \
+ *       -Dexec.classpathScope=test [-Dexec.args=<input-file|directory|glob>]
+ * Without an input, a small generated text is used.
+ */
+import kafka.server.KafkaConfig;
+import kafka.server.KafkaServer;
+import org.apache.kafka.clients.admin.Admin;
+import org.apache.kafka.clients.admin.AdminClientConfig;
+import org.apache.kafka.clients.admin.NewTopic;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.network.ListenerName;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.IntegerDeserializer;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.utils.Time;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import scala.Option;
+
+import mapreduce.InputFiles;
+import mapreduce.InputFormat;
+import mapreduce.Tokenizer;
+import mapreduce.WordCounter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Stream;
+
+public class TestKafkaMapReduce {
+    private static final String MAP_TOPIC = "map-topic";
+    private static final String REDUCE_TOPIC = "reduce-topic";
+    private static final String WORKER_GROUP = "worker-group";
+    private static final int MAP_PARTITIONS = 3;
+    private static final int REDUCE_PARTITIONS = 2;
+
+    private static int failures;
+
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("kafka-mapreduce-test");
+        String input = args.length > 0 ? args[0] : generateInput(dir.resolve("input.txt")).toString();
+
+        // ZooKeeper and one broker, both on free ports
+        Path zkDir = Files.createDirectories(dir.resolve("zookeeper"));
+        ZooKeeperServer zk = new ZooKeeperServer(zkDir.toFile(), zkDir.toFile(), 500);
+        ServerCnxnFactory zkFactory = ServerCnxnFactory.createFactory(new InetSocketAddress("127.0.0.1", 0), 16);
+        KafkaServer broker = null;
+        try {
+            zkFactory.startup(zk);
+            Properties brokerProps = new Properties();
+            brokerProps.put("broker.id", "0");
+            brokerProps.put("zookeeper.connect", "127.0.0.1:" + zkFactory.getLocalPort());
+            brokerProps.put("listeners", "PLAINTEXT://127.0.0.1:0");
+            brokerProps.put("log.dirs", dir.resolve("kafka").toString());
+            brokerProps.put("offsets.topic.replication.factor", "1");
+            brokerProps.put("offsets.topic.num.partitions", "1");
+            brokerProps.put("group.initial.rebalance.delay.ms", "0");
+            brokerProps.put("auto.create.topics.enable", "false");
+            broker = new KafkaServer(new KafkaConfig(brokerProps), Time.SYSTEM, Option.empty(), false);
+            broker.startup();
+            String bootstrap = "127.0.0.1:" + broker.boundPort(ListenerName.normalised("PLAINTEXT"));
+            System.out.println("Embedded broker on " + bootstrap + ", data in " + dir);
+            runJob(bootstrap, dir, input);
+        } finally {
+            if (broker != null) {
+                broker.shutdown();
+                broker.awaitShutdown();
+            }
+            zkFactory.shutdown();
+            zk.shutdown();
+            deleteRecursively(dir);
+        }
+        System.out.println(failures == 0 ? "ALL CHECKS PASSED" : failures + " CHECKS FAILED");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * Two workers in the background, the second one late, and the master in this thread,
+     * with the checks running alongside.
+     */
+    private static void runJob(String bootstrap, Path dir, String input) throws Exception {
+        Properties adminProps = new Properties();
+        adminProps.put(AdminClientConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrap);
+        try (Admin admin = Admin.create(adminProps)) {
+            admin.createTopics(Arrays.asList(
+                    new NewTopic(MAP_TOPIC, MAP_PARTITIONS, (short) 1),
+                    new NewTopic(REDUCE_TOPIC, REDUCE_PARTITIONS, (short) 1))).all().get();
+
+            // A short window, so that the worker flushes and commits many times during the job. Bounded by
+            // time only (more words than the vocabulary), it spans several polls and still holds uncommitted
+            // lines when the partitions are revoked
+            System.setProperty("mapreduce.kafka.bootstrap", bootstrap);
+            setIfAbsent("mapreduce.kafka.windowWords", "100000");
+            setIfAbsent("mapreduce.kafka.windowMs", "200");
+            // The first worker notices the second one quickly, long before the end of the input
+            setIfAbsent("mapreduce.kafka.heartbeatMs", "100");
+            setIfAbsent("mapreduce.report", dir.resolve("job-report.json").toString());
+            Thread worker = new Thread(() -> WorkerKafka.main(new String[0]), "worker");
+            worker.setDaemon(true);
+            worker.start();
+
+            CommitMonitor monitor = new CommitMonitor(admin, bootstrap);
+            monitor.start();
+            // Joins once the first worker has committed: its window is flushed and committed on revocation
+            Thread lateWorker = new Thread(() -> {
+                try {
+                    monitor.awaitFirstCommit(30000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                WorkerKafka.main(new String[0]);
+            }, "late-worker");
+            lateWorker.setDaemon(true);
+            lateWorker.start();
+            long start = System.currentTimeMillis();
+            MasterKafka.main(new String[]{input});
+            System.out.println("Job done in " + (System.currentTimeMillis() - start) + " ms");
+            monitor.awaitCommitted(endOffsets(bootstrap, MAP_TOPIC), 10000);
+            monitor.stop();
+
+            check(monitor.committedWhenShared != null && !monitor.committedWhenShared.equals(endOffsets(bootstrap, MAP_TOPIC)),
+                    "rebalance: partitions shared by two workers with offsets committed up to " + monitor.committedWhenShared);
+            checkCounts(bootstrap, input);
+            checkMarkers(bootstrap);
+            checkCommits(bootstrap, monitor);
+        }
+    }
+
+    /**
+     * Counts on reduce-topic against an exact count of the input, tokenized as the worker does.
+     */
+    private static void checkCounts(String bootstrap, String input) throws IOException {
+        WordCounter expected = new WordCounter();
+        long[] tokens = new long[1];
+        Tokenizer tokenizer = new Tokenizer((b, off, len) -> {
+            expected.add(b, off, len);
+            tokens[0]++;
+        });
+        for (Path file : InputFiles.resolve(input)) {
+            try (BufferedReader br = InputFormat.of(file).reader(file)) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    tokenizer.line(line);
+                }
+            }
+        }
+        WordCounter actual = new WordCounter();
+        long records = 0;
+        for (ConsumerRecord<byte[], byte[]> r : readAll(bootstrap, REDUCE_TOPIC)) {
+            if (r.headers().lastHeader(MasterKafka.END_OF_INPUT) == null) {
+                actual.add(new String(r.key(), StandardCharsets.ISO_8859_1), toInt(r.value()));
+                records++;
+            }
+        }
+        long[] mismatches = new long[1];
+        expected.forEach((b, off, len, count) -> {
+            if (actual.get(b, off, len) != count) {
+                mismatches[0]++;
+            }
+        });
+        check(mismatches[0] == 0 && actual.size() == expected.size(),
+                "word counts: " + actual.size() + " distinct words on reduce-topic, " + expected.size()
+                        + " in the input, " + mismatches[0] + " wrong counts");
+        check(records < tokens[0], "window: " + records + " count records for " + tokens[0] + " tokens");
+    }
+
+    /**
+     * Every map partition's marker reaches every reduce partition once, with the worker metrics, after its counts.
+     */
+    private static void checkMarkers(String bootstrap) {
+        Map<Integer, Set<String>> echoes = new HashMap<>();
+        Map<Integer, Long> lastEcho = new HashMap<>();
+        Map<Integer, Long> lastCount = new HashMap<>();
+        boolean withMetrics = true;
+        for (ConsumerRecord<byte[], byte[]> r : readAll(bootstrap, REDUCE_TOPIC)) {
+            Header eof = r.headers().lastHeader(MasterKafka.END_OF_INPUT);
+            if (eof == null) {
+                lastCount.put(r.partition(), r.offset());
+                continue;
+            }
+            String marker = new String(eof.value(), StandardCharsets.UTF_8);
+            echoes.computeIfAbsent(r.partition(), p -> new HashSet<>()).add(marker.substring(marker.indexOf(':') + 1));
+            lastEcho.put(r.partition(), r.offset());
+            withMetrics &= r.headers().lastHeader(MasterKafka.WORKER) != null
+                    && r.headers().lastHeader(MasterKafka.METRICS) != null;
+        }
+        for (int p = 0; p < REDUCE_PARTITIONS; p++) {
+            Set<String> got = echoes.getOrDefault(p, Collections.emptySet());
+            check(got.size() == MAP_PARTITIONS, "reduce partition " + p + ": markers echoed from map partitions " + got);
+            check(lastEcho.getOrDefault(p, -1L) > lastCount.getOrDefault(p, -1L),
+                    "reduce partition " + p + ": last echo at offset " + lastEcho.get(p)
+                            + ", last count at offset " + lastCount.get(p));
+        }
+        check(withMetrics, "echoed markers carry the worker name and metrics");
+    }
+
+    /**
+     * Each committed position seen during the job is covered by the tokens already on reduce-topic at that time.
+     */
+    private static void checkCommits(String bootstrap, CommitMonitor monitor) {
+        // Tokens of each map-topic line, by partition and offset
+        Map<Integer, List<Long>> tokensBefore = new HashMap<>();
+        long[] tokens = new long[1];
+        Tokenizer tokenizer = new Tokenizer((b, off, len) -> tokens[0]++);
+        for (ConsumerRecord<byte[], byte[]> r : readAll(bootstrap, MAP_TOPIC)) {
+            List<Long> before = tokensBefore.computeIfAbsent(r.partition(), p -> new ArrayList<>(Collections.singletonList(0L)));
+            tokens[0] = 0;
+            if (r.value() != null) {
+                tokenizer.line(new String(r.value(), StandardCharsets.UTF_8));
+            }
+            before.add(before.get(before.size() - 1) + tokens[0]);
+        }
+        int violations = 0;
+        for (CommitMonitor.Snapshot s : monitor.snapshots) {
+            long committed = 0;
+            for (Map.Entry<Integer, Long> e : s.committed.entrySet()) {
+                List<Long> before = tokensBefore.get(e.getKey());
+                committed += before.get((int) Math.min(e.getValue(), before.size() - 1));
+            }
+            if (committed > s.flushedTokens) {
+                violations++;
+            }
+        }
+        check(monitor.snapshots.size() > 1 && violations == 0,
+                "commits: " + monitor.snapshots.size() + " committed positions seen, " + violations + " ahead of the flushed counts");
+        check(monitor.finallyCommitted, "every map-topic record committed at the end of the job");
+    }
+
+    /**
+     * Polls the worker group's committed offsets and members, then the count tokens on reduce-topic,
+     * while the job runs.
+     */
+    private static final class CommitMonitor implements Runnable {
+        static final class Snapshot {
+            final Map<Integer, Long> committed;
+            final long flushedTokens;
+
+            Snapshot(Map<Integer, Long> committed, long flushedTokens) {
+                this.committed = committed;
+                this.flushedTokens = flushedTokens;
+            }
+        }
+
+        final List<Snapshot> snapshots = Collections.synchronizedList(new ArrayList<>());
+        volatile boolean finallyCommitted;
+        // Committed offsets when two workers were first seen holding partitions
+        volatile Map<Integer, Long> committedWhenShared;
+        private final Admin admin;
+        private final KafkaConsumer<byte[], Integer> reduced;
+        private final Thread thread = new Thread(this, "commit-monitor");
+        private volatile boolean running = true;
+        private volatile Map<Integer, Long> lastCommitted = Collections.emptyMap();
+        private long flushedTokens;
+
+        CommitMonitor(Admin admin, String bootstrap) {
+            this.admin = admin;
+            Properties props = consumerProps(bootstrap);
+            props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, IntegerDeserializer.class.getName());
+            reduced = new KafkaConsumer<>(props);
+            reduced.assign(partitions(REDUCE_TOPIC, REDUCE_PARTITIONS));
+            reduced.seekToBeginning(reduced.assignment());
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    Map<Integer, Long> committed = new HashMap<>();
+                    for (Map.Entry<TopicPartition, OffsetAndMetadata> e : admin.listConsumerGroupOffsets(WORKER_GROUP)
+                            .partitionsToOffsetAndMetadata().get().entrySet()) {
+                        if (e.getValue() != null && e.getKey().topic().equals(MAP_TOPIC)) {
+                            committed.put(e.getKey().partition(), e.getValue().offset());
+                        }
+                    }
+                    // Everything flushed before the commit is on reduce-topic by now
+                    Map<TopicPartition, Long> end = reduced.endOffsets(reduced.assignment());
+                    while (!caughtUp(end)) {
+                        reduced.poll(Duration.ofMillis(100)).forEach(r -> {
+                            if (r.value() != null) {
+                                flushedTokens += r.value();
+                            }
+                        });
+                    }
+                    if (!committed.isEmpty() && !committed.equals(lastCommitted)) {
+                        snapshots.add(new Snapshot(committed, flushedTokens));
+                    }
+                    if (committedWhenShared == null && activeMembers() > 1) {
+                        committedWhenShared = committed;
+                    }
+                    lastCommitted = committed;
+                    Thread.sleep(20);
+                }
+            } catch (Exception e) {
+                System.err.println("Commit monitor failed: " + e.getMessage());
+            } finally {
+                reduced.close();
+            }
+        }
+
+        private long activeMembers() throws Exception {
+            return admin.describeConsumerGroups(Collections.singletonList(WORKER_GROUP)).describedGroups()
+                    .get(WORKER_GROUP).get().members().stream()
+                    .filter(m -> !m.assignment().topicPartitions().isEmpty())
+                    .count();
+        }
+
+        private boolean caughtUp(Map<TopicPartition, Long> end) {
+            for (Map.Entry<TopicPartition, Long> e : end.entrySet()) {
+                if (reduced.position(e.getKey()) < e.getValue()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void awaitFirstCommit(long timeoutMs) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (snapshots.isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+        }
+
+        void awaitCommitted(Map<Integer, Long> endOffsets, long timeoutMs) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (!lastCommitted.equals(endOffsets) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            finallyCommitted = lastCommitted.equals(endOffsets);
+        }
+
+        void stop() throws InterruptedException {
+            running = false;
+            thread.join();
+        }
+    }
+
+    private static Map<Integer, Long> endOffsets(String bootstrap, String topic) {
+        try (KafkaConsumer<byte[], byte[]> consumer = new KafkaConsumer<>(consumerProps(bootstrap))) {
+            Map<Integer, Long> offsets = new HashMap<>();
+            consumer.endOffsets(partitions(topic, MAP_PARTITIONS)).forEach((tp, offset) -> offsets.put(tp.partition(), offset));
+            return offsets;
+        }
+    }
+
+    /**
+     * Every record of a topic, partition by partition.
+     */
+    private static List<ConsumerRecord<byte[], byte[]>> readAll(String bootstrap, String topic) {
+        List<ConsumerRecord<byte[], byte[]>> records = new ArrayList<>();
+        try (KafkaConsumer<byte[], byte[]> consumer = new KafkaConsumer<>(consumerProps(bootstrap))) {
+            int count = consumer.partitionsFor(topic).size();
+            for (TopicPartition partition : partitions(topic, count)) {
+                consumer.assign(Collections.singletonList(partition));
+                consumer.seekToBeginning(consumer.assignment());
+                long end = consumer.endOffsets(consumer.assignment()).get(partition);
+                while (consumer.position(partition) < end) {
+                    consumer.poll(Duration.ofMillis(100)).forEach(records::add);
+                }
+            }
+        }
+        return records;
+    }
+
+    private static Properties consumerProps(String bootstrap) {
+        Properties props = new Properties();
+        props.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrap);
+        props.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+        props.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class.getName());
+        props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class.getName());
+        return props;
+    }
+
+    private static List<TopicPartition> partitions(String topic, int count) {
+        List<TopicPartition> partitions = new ArrayList<>();
+        for (int p = 0; p < count; p++) {
+            partitions.add(new TopicPartition(topic, p));
+        }
+        return partitions;
+    }
+
+    private static int toInt(byte[] value) {
+        return new IntegerDeserializer().deserialize(REDUCE_TOPIC, value);
+    }
+
+    private static void check(boolean ok, String what) {
+        System.out.println((ok ? "OK      " : "FAILED  ") + what);
+        if (!ok) {
+            failures++;
+        }
+    }
+
+    private static void setIfAbsent(String key, String value) {
+        if (System.getProperty(key) == null) {
+            System.setProperty(key, value);
+        }
+    }
+
+    /**
+     * Lines drawn from a small vocabulary, so that the window has repeated words to combine,
+     * enough of them for the job to outlast the rebalance when the second worker joins.
+     */
+    private static Path generateInput(Path file) throws IOException {
+        String[] vocabulary = new String[200];
+        for (int i = 0; i < vocabulary.length; i++) {
+            vocabulary[i] = "word" + i;
+        }
+        Random random = new Random(42);
+        try (Writer w = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (int line = 0; line < 100000; line++) {
+                for (int i = random.nextInt(12); i > 0; i--) {
+                    // Skewed towards the first words, as in a real text
+                    w.append(vocabulary[(int) (vocabulary.length * Math.pow(random.nextDouble(), 3))]).append(' ');
+                }
+                w.append('\n');
+            }
+        }
+        return file;
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+}
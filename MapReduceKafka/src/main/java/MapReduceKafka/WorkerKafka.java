@@ -1,61 +1,186 @@
 package MapReduceKafka;
 
 import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.RebalanceInProgressException;
+import org.apache.kafka.common.header.Header;
 import org.apache.kafka.common.serialization.IntegerSerializer;
 import org.apache.kafka.common.serialization.StringDeserializer;
 import org.apache.kafka.common.serialization.StringSerializer;
 
+import mapreduce.Metrics;
+import mapreduce.Tokenizer;
+import mapreduce.WordCounter;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Properties;
 
+/*
+ * WorkerKafka.java
+ * Consumes lines from "map-topic" and publishes word counts to "reduce-topic".
+ * Counts are combined in memory over a window (a time span or a number of
+ * distinct words, whichever comes first) and each word is sent once per window
+ * with its combined count, instead of one record per token. Consumer offsets
+ * are committed only once the window has been flushed to the broker, including
+ * when the group rebalances and partitions move to another worker.
+ *
+ * An end-of-input marker from the master flushes the window at once and is
+ * echoed to every reduce-topic partition, after the counts it covers, along
+ * with this worker's metrics (counted since it started).
+ */
 public class WorkerKafka {
     private static final String MAP_TOPIC = "map-topic";
     private static final String REDUCE_TOPIC = "reduce-topic";
 
     public static void main(String[] args) {
+        String bootstrap = System.getProperty("mapreduce.kafka.bootstrap", "localhost:9092");
+        // Aggregation window: flushed after windowMs, or as soon as it holds windowWords distinct words
+        long windowMs = Long.getLong("mapreduce.kafka.windowMs", 1000);
+        int windowWords = Integer.getInteger("mapreduce.kafka.windowWords", 100000);
+
         // Configure consumer for map stage
         Properties consProps = new Properties();
-        consProps.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, "localhost:9092");
+        consProps.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrap);
         consProps.put(ConsumerConfig.GROUP_ID_CONFIG, "worker-group");
         consProps.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
         consProps.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
         consProps.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
+        // Lines are only acknowledged once their counts have left the window
+        consProps.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+        // A worker joining or leaving is noticed by the others at their next heartbeat
+        consProps.put(ConsumerConfig.HEARTBEAT_INTERVAL_MS_CONFIG, System.getProperty("mapreduce.kafka.heartbeatMs", "3000"));
         KafkaConsumer<String, String> consumer = new KafkaConsumer<>(consProps);
-        consumer.subscribe(Collections.singletonList(MAP_TOPIC));
 
-        // Configure producer for reduce stage
+        // Configure producer for reduce stage, tuned for throughput
         Properties prodProps = new Properties();
-        prodProps.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, "localhost:9092");
+        prodProps.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrap);
         prodProps.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
         prodProps.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, IntegerSerializer.class.getName());
+        prodProps.put(ProducerConfig.LINGER_MS_CONFIG, System.getProperty("mapreduce.kafka.lingerMs", "20"));
+        prodProps.put(ProducerConfig.BATCH_SIZE_CONFIG, System.getProperty("mapreduce.kafka.batchBytes", "262144"));
+        prodProps.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, System.getProperty("mapreduce.kafka.compression", "lz4"));
         KafkaProducer<String, Integer> producer = new KafkaProducer<>(prodProps);
 
-        // Consume lines and emit word counts
+        // Consume lines and combine word counts
+        Metrics metrics = new Metrics();
+        WordCounter window = new WordCounter();
+        long[] tokens = new long[1];
+        Tokenizer tokenizer = new Tokenizer((b, off, len) -> {
+            window.add(b, off, len);
+            tokens[0]++;
+        });
+        consumer.subscribe(Collections.singletonList(MAP_TOPIC), new ConsumerRebalanceListener() {
+            @Override
+            public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+                // Publish and acknowledge what was read before the new owner resumes from the committed offsets
+                flush(window, producer, metrics);
+                window.clear();
+                consumer.commitSync();
+            }
+
+            @Override
+            public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+            }
+
+            @Override
+            public void onPartitionsLost(Collection<TopicPartition> partitions) {
+                // Offsets can no longer be committed: the new owner will count these lines again
+                window.clear();
+                tokens[0] = 0;
+            }
+        });
+        long windowStart = System.currentTimeMillis();
         boolean running = true;
         while (running) {
-            ConsumerRecords<String, String> records = consumer.poll(Duration.ofSeconds(1));
-            if (records.isEmpty()) {
-                // no new data, continue polling
-                continue;
-            }
-            records.forEach(record -> {
-                String line = record.value();
-                String[] tokens = line.toLowerCase().replaceAll("[^a-z0-9 ]", "").split("\\s+");
-                for (String word : tokens) {
-                    if (!word.isEmpty()) {
-                        producer.send(new ProducerRecord<>(REDUCE_TOPIC, word, 1));
-                    }
+            ConsumerRecords<String, String> records = consumer.poll(Duration.ofMillis(Math.min(windowMs, 1000)));
+            boolean flushed = false;
+            for (ConsumerRecord<String, String> record : records) {
+                Header eof = record.headers().lastHeader(MasterKafka.END_OF_INPUT);
+                if (eof == null) {
+                    tokenizer.line(record.value());
+                    metrics.increment("map.lines");
+                    continue;
+                }
+                // Counts of this partition's lines must reach the reducers before the marker
+                flush(window, producer, metrics);
+                window.clear();
+                metrics.increment("map.tokens", tokens[0]);
+                tokens[0] = 0;
+                echo(producer, eof.value(), record.partition(), metrics);
+                flushed = true;
+            }
+            if (window.size() >= windowWords
+                    || (!window.isEmpty() && System.currentTimeMillis() - windowStart >= windowMs)) {
+                flush(window, producer, metrics);
+                window.clear();
+                flushed = true;
+            }
+            // Lines still in the window after a marker are committed with the next flush
+            if (flushed && window.isEmpty()) {
+                try {
+                    consumer.commitSync();
+                } catch (RebalanceInProgressException e) {
+                    // The next poll rejoins the group, and the listener commits before giving up the partitions
+                    System.err.println("Commit deferred to the rebalance: " + e.getMessage());
                 }
-            });
+            }
+            if (window.isEmpty()) {
+                windowStart = System.currentTimeMillis();
+            }
         }
 
         // cleanup
         // producer.close(); consumer.close(); // unreachable in this example
     }
+
+    /**
+     * Send one record per distinct word of the window and wait until the broker has them all.
+     */
+    private static void flush(WordCounter window, KafkaProducer<String, Integer> producer, Metrics metrics) {
+        if (window.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        metrics.increment("window.flushes");
+        metrics.record("window.words", window.size());
+        metrics.increment("records.out", window.size());
+        window.forEach((arena, off, len, count) -> {
+            String word = new String(arena, off, len, StandardCharsets.ISO_8859_1);
+            // Values are ints on the wire: split the (unlikely) larger counts
+            for (long left = count; left > 0; left -= Integer.MAX_VALUE) {
+                producer.send(new ProducerRecord<>(REDUCE_TOPIC, word, (int) Math.min(left, Integer.MAX_VALUE)));
+            }
+        });
+        producer.flush();
+        metrics.time("window.flush", start);
+    }
+
+    /**
+     * Forward the end-of-input marker of a map partition to every reduce partition.
+     */
+    private static void echo(KafkaProducer<String, Integer> producer, byte[] job, int mapPartition, Metrics metrics) {
+        byte[] marker = (new String(job, StandardCharsets.UTF_8) + ":" + mapPartition).getBytes(StandardCharsets.UTF_8);
+        byte[] worker = ManagementFactory.getRuntimeMXBean().getName().getBytes(StandardCharsets.UTF_8);
+        byte[] report = metrics.toJson().getBytes(StandardCharsets.UTF_8);
+        for (PartitionInfo partition : producer.partitionsFor(REDUCE_TOPIC)) {
+            ProducerRecord<String, Integer> record = new ProducerRecord<>(REDUCE_TOPIC, partition.partition(), null, null);
+            record.headers().add(MasterKafka.END_OF_INPUT, marker);
+            record.headers().add(MasterKafka.WORKER, worker);
+            record.headers().add(MasterKafka.METRICS, report);
+            producer.send(record);
+        }
+        producer.flush();
+    }
 }
@@ -0,0 +1,94 @@
+package mapreduce.benchmarks;
+
+import mapreduce.ChunkWordFrequencyThread;
+import mapreduce.MapReduce;
+import mapreduce.WordCount;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The MapReduce engine, phase by phase and end to end, for each thread count.
+ *
+ * Each invocation processes the whole corpus once, so the benchmarks run in
+ * single-shot mode; the phases before the measured one are replayed in an
+ * untimed per-invocation setup.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class MapReduceBenchmark {
+    private static final int TOP_K = 20;
+
+    @State(Scope.Benchmark)
+    public static class Threads {
+        @Param({"1", "2", "4", "8"})
+        public int threads;
+    }
+
+    @State(Scope.Benchmark)
+    public static class Mapped {
+        ChunkWordFrequencyThread[] workers;
+
+        @Setup(Level.Invocation)
+        public void map(ZipfCorpus corpus, Threads t) throws IOException, InterruptedException {
+            workers = MapReduce.map(corpus.file, t.threads);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Shuffled {
+        ChunkWordFrequencyThread[] workers;
+
+        @Setup(Level.Invocation)
+        public void mapAndShuffle(ZipfCorpus corpus, Threads t) throws IOException, InterruptedException {
+            workers = MapReduce.map(corpus.file, t.threads);
+            MapReduce.shuffle(workers);
+        }
+    }
+
+    @Benchmark
+    public ChunkWordFrequencyThread[] map(ZipfCorpus corpus, Threads t) throws IOException, InterruptedException {
+        return MapReduce.map(corpus.file, t.threads);
+    }
+
+    /**
+     * Partitioning plan, prepareShuffle and executeShuffle.
+     */
+    @Benchmark
+    public ChunkWordFrequencyThread[] shuffle(Mapped mapped) throws IOException, InterruptedException {
+        MapReduce.shuffle(mapped.workers);
+        return mapped.workers;
+    }
+
+    @Benchmark
+    public List<WordCount> reduce(Shuffled shuffled) throws IOException, InterruptedException {
+        return MapReduce.reduce(shuffled.workers, TOP_K);
+    }
+
+    @Benchmark
+    public List<WordCount> endToEnd(ZipfCorpus corpus, Threads t) throws IOException, InterruptedException {
+        return MapReduce.run(corpus.file, t.threads, TOP_K, new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+    }
+}
@@ -0,0 +1,29 @@
+package mapreduce.benchmarks;
+
+import mapreduce.WordCounter;
+import mapreduce.Words;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-threaded word frequency count (tokenizer and counter, no shuffle).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WordsBenchmark {
+
+    @Benchmark
+    public WordCounter frequencyWords(ZipfCorpus corpus) {
+        return new Words().frequencyWords(corpus.file.toString());
+    }
+}
@@ -0,0 +1,93 @@
+package mapreduce.benchmarks;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Synthetic text corpus whose word frequencies follow a Zipf law, as natural
+ * language (and Common Crawl WET text) roughly does: the word of rank r appears
+ * with probability proportional to 1 / r^exponent. Frequent words are short,
+ * since rank r is spelled in base 26.
+ *
+ * The file is generated once per parameter set with a fixed seed and kept in
+ * java.io.tmpdir, so successive runs benchmark exactly the same input.
+ */
+@State(Scope.Benchmark)
+public class ZipfCorpus {
+    private static final int WORDS_PER_LINE = 12;
+
+    @Param({"64"})
+    public int corpusMB;
+
+    @Param({"100000"})
+    public int vocabulary;
+
+    @Param({"1.0"})
+    public double exponent;
+
+    public Path file;
+
+    @Setup
+    public void generate() throws IOException {
+        file = Paths.get(System.getProperty("java.io.tmpdir"),
+                "zipf-" + corpusMB + "mb-" + vocabulary + "-" + exponent + ".txt");
+        long size = (long) corpusMB << 20;
+        if (Files.exists(file) && Files.size(file) >= size) {
+            return;
+        }
+        write(file, size, vocabulary, exponent, 42);
+    }
+
+    /**
+     * Write about size bytes of Zipf-distributed words to file.
+     */
+    public static void write(Path file, long size, int vocabulary, double exponent, long seed) throws IOException {
+        double[] cumulative = new double[vocabulary];
+        double sum = 0;
+        for (int r = 0; r < vocabulary; r++) {
+            sum += 1 / Math.pow(r + 1, exponent);
+            cumulative[r] = sum;
+        }
+        String[] words = new String[vocabulary];
+        for (int r = 0; r < vocabulary; r++) {
+            words[r] = spell(r);
+        }
+        Random random = new Random(seed);
+        long written = 0;
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.US_ASCII)) {
+            while (written < size) {
+                for (int w = 0; w < WORDS_PER_LINE; w++) {
+                    int r = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+                    String word = words[r < 0 ? Math.min(-r - 1, vocabulary - 1) : r];
+                    if (w > 0) {
+                        out.write(' ');
+                    }
+                    out.write(word);
+                    written += word.length() + 1;
+                }
+                out.write('\n');
+            }
+        }
+    }
+
+    private static String spell(int rank) {
+        StringBuilder sb = new StringBuilder();
+        int n = rank;
+        do {
+            sb.append((char) ('a' + n % 26));
+            n = n / 26 - 1;
+        } while (n >= 0);
+        return sb.reverse().toString();
+    }
+}
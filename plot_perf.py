@@ -1,16 +1,61 @@
 #!/usr/bin/env python3
 import argparse
+import json
 import os
 import pandas as pd
 import matplotlib.pyplot as plt
 
+def load_jmh(json_file):
+    """JMH results (-rf json) as rows (Benchmark, Threads, Score, Unit)."""
+    with open(json_file) as f:
+        results = json.load(f)
+    rows = []
+    for r in results:
+        params = dict(r.get("params", {}))
+        threads = int(params.pop("threads", 1))
+        # Benchmark name, with the parameters other than threads
+        name = ".".join(r["benchmark"].split(".")[-2:])
+        if params:
+            name += " (" + ", ".join(f"{k}={v}" for k, v in sorted(params.items())) + ")"
+        rows.append({
+            "Benchmark": name,
+            "Threads": threads,
+            "Score": r["primaryMetric"]["score"],
+            "Unit": r["primaryMetric"]["scoreUnit"],
+        })
+    return pd.DataFrame(rows)
+
+
+def plot_jmh(json_file):
+    df = load_jmh(json_file)
+    plt.figure()
+    for name, group in df.groupby("Benchmark"):
+        group = group.sort_values("Threads")
+        plt.plot(group["Threads"], group["Score"], marker="o", label=name)
+    plt.title("MapReduce JMH Benchmarks")
+    plt.xlabel("Number of Threads")
+    plt.ylabel("Score (" + ", ".join(sorted(df["Unit"].unique())) + ")")
+    plt.grid(True)
+    plt.legend(fontsize="small")
+    plt.tight_layout()
+
+    png = os.path.splitext(json_file)[0] + ".png"
+    plt.savefig(png)
+    print(f"Saved plot to {png}")
+    plt.show()
+
+
 def main():
     p = argparse.ArgumentParser(
         description="Plot MapReduce perf: threads vs average time"
     )
-    p.add_argument("csv_file", help="Path to perf CSV")
+    p.add_argument("csv_file", help="Path to perf CSV, or to JMH results written with -rf json")
     args = p.parse_args()
 
+    if args.csv_file.endswith(".json"):
+        plot_jmh(args.csv_file)
+        return
+
     # 1) load, with ';' sep and ',' decimal
     df = pd.read_csv(args.csv_file, sep=';', decimal=',')
 
@@ -0,0 +1,170 @@
+package mapreduce;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared queue of small, newline-aligned chunks of memory-mapped files
+ * (record- or gzip-member-aligned for WET inputs, see {@link InputFormat}).
+ *
+ * Map threads pull the next chunk as soon as they are done with the previous
+ * one, so a thread that drew short records simply takes more chunks and all
+ * threads finish at about the same time (self-scheduling, no central dispatcher).
+ * With several files, the chunks of every file are queued one file after the
+ * other, so each thread sees the files in order.
+ */
+public final class ChunkQueue implements AutoCloseable {
+    // Lower bound on the number of chunks per thread, so that small inputs still balance
+    static final int MIN_CHUNKS_PER_THREAD = 4;
+
+    private final FileChannel[] channels;
+    private final InputFormat[] formats;
+    // Chunk i is [starts[i], ends[i]) of file files[i]
+    private final int[] files;
+    private final long[] starts;
+    private final long[] ends;
+    // Channels opened by of(List), closed by close()
+    private final boolean owned;
+    private final AtomicInteger next = new AtomicInteger();
+
+    public ChunkQueue(FileChannel channel, long[] bounds) {
+        this(channel, bounds, InputFormat.TEXT);
+    }
+
+    public ChunkQueue(FileChannel channel, long[] bounds, InputFormat format) {
+        this(new FileChannel[]{channel}, new InputFormat[]{format}, new long[][]{bounds}, false);
+    }
+
+    private ChunkQueue(FileChannel[] channels, InputFormat[] formats, long[][] bounds, boolean owned) {
+        this.channels = channels;
+        this.formats = formats;
+        this.owned = owned;
+        int count = 0;
+        for (long[] b : bounds) {
+            count += b.length - 1;
+        }
+        files = new int[count];
+        starts = new long[count];
+        ends = new long[count];
+        int i = 0;
+        for (int f = 0; f < bounds.length; f++) {
+            for (int j = 0; j + 1 < bounds[f].length; j++, i++) {
+                files[i] = f;
+                starts[i] = bounds[f][j];
+                ends[i] = bounds[f][j + 1];
+            }
+        }
+    }
+
+    /**
+     * Cut the channel into chunks of about chunkBytes, and at least
+     * MIN_CHUNKS_PER_THREAD chunks per thread.
+     */
+    public static ChunkQueue of(FileChannel channel, long chunkBytes, int threads) throws IOException {
+        return of(channel, chunkBytes, threads, InputFormat.TEXT);
+    }
+
+    /**
+     * Same as {@link #of(FileChannel, long, int)} for a file of the given format; chunkBytes
+     * counts bytes of the file, i.e. compressed bytes for a gzipped input.
+     */
+    public static ChunkQueue of(FileChannel channel, long chunkBytes, int threads, InputFormat format)
+            throws IOException {
+        int parts = parts(channel.size(), channel.size(), chunkBytes, threads);
+        return new ChunkQueue(channel, format.split(channel, parts), format);
+    }
+
+    /**
+     * Queue over several files, each opened here and read in its own format, and cut in
+     * proportion to its share of the total size. Close the queue to close the files.
+     */
+    public static ChunkQueue of(List<Path> paths, long chunkBytes, int threads) throws IOException {
+        FileChannel[] channels = new FileChannel[paths.size()];
+        InputFormat[] formats = new InputFormat[paths.size()];
+        long[][] bounds = new long[paths.size()][];
+        try {
+            long total = 0;
+            for (int f = 0; f < channels.length; f++) {
+                channels[f] = FileChannel.open(paths.get(f), StandardOpenOption.READ);
+                formats[f] = InputFormat.of(channels[f]);
+                total += channels[f].size();
+            }
+            for (int f = 0; f < channels.length; f++) {
+                bounds[f] = formats[f].split(channels[f], parts(channels[f].size(), total, chunkBytes, threads));
+            }
+        } catch (IOException e) {
+            for (FileChannel channel : channels) {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+            throw e;
+        }
+        return new ChunkQueue(channels, formats, bounds, true);
+    }
+
+    /**
+     * Chunks of a file of size bytes, out of total bytes for the whole job.
+     */
+    private static int parts(long size, long total, long chunkBytes, int threads) {
+        long byCount = (size + chunkBytes - 1) / Math.max(1, chunkBytes);
+        long byThreads = total == 0 ? 1 : (long) Math.ceil((double) threads * MIN_CHUNKS_PER_THREAD * size / total);
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE - 1, Math.max(byCount, byThreads)));
+    }
+
+    public int chunkCount() {
+        return starts.length;
+    }
+
+    /**
+     * Tokenize the next unclaimed chunk and return its size in bytes; -1 once the queue is drained.
+     */
+    public long mapNext(Tokenizer tokenizer) throws IOException {
+        int i = claim();
+        return i < 0 ? -1 : map(i, tokenizer);
+    }
+
+    /**
+     * Claim the next chunk; -1 once the queue is drained. Chunks are claimed in increasing order.
+     */
+    public int claim() {
+        int i = next.getAndIncrement();
+        return i < starts.length ? i : -1;
+    }
+
+    /**
+     * Index, in the list the queue was built from, of the file of a chunk.
+     */
+    public int fileOf(int chunk) {
+        return files[chunk];
+    }
+
+    /**
+     * Tokenize a claimed chunk and return its size in bytes.
+     */
+    public long map(int chunk, Tokenizer tokenizer) throws IOException {
+        FileChannel channel = channels[files[chunk]];
+        InputFormat format = formats[files[chunk]];
+        if (starts[chunk] < ends[chunk]) {
+            if (format == InputFormat.TEXT) {
+                FileSplits.tokenize(channel, starts[chunk], ends[chunk], tokenizer);
+            } else {
+                format.read(channel, starts[chunk], ends[chunk], tokenizer, () -> false);
+            }
+        }
+        return ends[chunk] - starts[chunk];
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (owned) {
+            for (FileChannel channel : channels) {
+                channel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package mapreduce;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Map worker of the approximate mode: feeds every word of its chunks to a
+ * fixed-size {@link HeavyHitters} summary instead of an exact counter, so its
+ * memory does not grow with the vocabulary.
+ */
+public class ChunkSketchThread implements Runnable {
+    private final List<String> lines;
+    private final ChunkQueue chunks;
+    private final int id;
+    private final HeavyHitters summary = HeavyHitters.fromSystemProperty();
+    private final Metrics metrics = new Metrics();
+
+    public ChunkSketchThread(List<String> lines, int id) {
+        this.lines = lines;
+        this.chunks = null;
+        this.id = id;
+    }
+
+    public ChunkSketchThread(ChunkQueue chunks, int id) {
+        this.lines = null;
+        this.chunks = chunks;
+        this.id = id;
+    }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        Tokenizer tokenizer = new Tokenizer(summary::add);
+        long bytes = 0;
+        try {
+            if (lines == null) {
+                long chunk;
+                while ((chunk = chunks.mapNext(tokenizer)) >= 0) {
+                    bytes += chunk;
+                    metrics.record("map.chunkBytes", chunk);
+                }
+            } else {
+                for (String line : lines) {
+                    tokenizer.line(line);
+                    bytes += line.length() + 1;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Map error in worker " + id + ": " + e.getMessage());
+        }
+        metrics.increment("map.bytes", bytes);
+        metrics.increment("map.tokens", summary.total());
+        metrics.time("map", start);
+    }
+
+    public HeavyHitters getSummary() {
+        return summary;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+}
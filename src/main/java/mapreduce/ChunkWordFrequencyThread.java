@@ -1,41 +1,272 @@
 package mapreduce;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 public class ChunkWordFrequencyThread implements Runnable {
     private final List<String> lines;
-    private final Map<String, Integer> wordFrequency = new HashMap<>();
+    private final ChunkQueue chunks;
     private final int id;
     private final int numWorkers;
+    // Share of the process memory budget of each of this worker's counters; beyond it they spill to disk
+    private final long budget;
+    private final Path spillDir = SpillingCounter.spillDirFromSystemProperty();
+    private final SpillingCounter wordFrequency;
     private ChunkWordFrequencyThread[] workersRef;
-    private final Map<Integer, Map<String, Integer>> shuffleBuckets;
-    private final Map<String, Integer> receivedData = new ConcurrentHashMap<>();
+    // Row of the shuffle matrix: outgoing[r] holds what this worker sends to worker r
+    private final SpillingCounter[] outgoing;
+    private final SpillingCounter receivedData;
+    private final Partitioner.Sampler sampler = new Partitioner.Sampler();
+    private Partitioner partitioner;
+    private List<WordCount> topK = Collections.emptyList();
+    private final WordCounter hotPartials = new WordCounter(16);
+    private final Metrics metrics = new Metrics();
+    private long tokens;
+    // Pipelined mode: combined partition buffers, handed to their reducer's inbox once over flushBytes
+    private static final WordCounter END_OF_MAP = new WordCounter(16);
+    private WordCounter[] buffers;
+    private long flushBytes;
+    private BlockingQueue<WordCounter> inbox;
+    // Per-file mode: counts of the file being read, set aside in fileCounts once the thread moves on
+    private List<List<SpillingCounter>> fileCounts;
+    private SpillingCounter current;
+    private int currentFile = -1;
+    private boolean failed;
+    // Spill read or write errors after the map: keys of this worker's partition were lost
+    private boolean shuffleFailed;
+    private boolean reduceFailed;
 
     public ChunkWordFrequencyThread(List<String> lines, int id, int numWorkers) {
         this.lines = lines;
+        this.chunks = null;
         this.id = id;
         this.numWorkers = numWorkers;
-        this.shuffleBuckets = new HashMap<>();
+        this.budget = SpillingCounter.budgetFromSystemProperty() / numWorkers;
+        this.wordFrequency = new SpillingCounter(budget, spillDir);
+        this.receivedData = new SpillingCounter(budget, spillDir);
+        this.outgoing = new SpillingCounter[numWorkers];
+    }
+
+    /**
+     * Worker pulling chunks of a memory-mapped file from a queue shared with the other workers,
+     * until the queue is drained.
+     */
+    public ChunkWordFrequencyThread(ChunkQueue chunks, int id, int numWorkers) {
+        this.lines = null;
+        this.chunks = chunks;
+        this.id = id;
+        this.numWorkers = numWorkers;
+        this.budget = SpillingCounter.budgetFromSystemProperty() / numWorkers;
+        this.wordFrequency = new SpillingCounter(budget, spillDir);
+        this.receivedData = new SpillingCounter(budget, spillDir);
+        this.outgoing = new SpillingCounter[numWorkers];
     }
 
     @Override
     public void run() {
-        for (String line : lines) {
-            String[] tokens = line
-                    .toLowerCase()
-                    .replaceAll("[^a-z0-9\\s]", "")
-                    .split("\\s+");
-            for (String word : tokens) {
-                if (!word.isEmpty()) {
-                    wordFrequency.merge(word, 1, Integer::sum);
+        long start = System.nanoTime();
+        Tokenizer tokenizer = new Tokenizer((b, off, len) -> {
+            if (buffers == null) {
+                (current != null ? current : wordFrequency).add(b, off, len);
+            } else {
+                int h = WordCounter.hash(b, off, len);
+                int dest = partitioner.partition(b, off, len, h, id);
+                buffers[dest].add(b, off, len, h, 1);
+                if (buffers[dest].usedBytes() > flushBytes) {
+                    deliver(dest);
+                }
+            }
+            tokens++;
+        });
+        long bytes = 0;
+        try {
+            if (lines == null) {
+                int chunk;
+                while ((chunk = chunks.claim()) >= 0) {
+                    // Chunks are claimed in order, so a file never comes back once left
+                    if (fileCounts != null && chunks.fileOf(chunk) != currentFile) {
+                        setAside();
+                        currentFile = chunks.fileOf(chunk);
+                        current = new SpillingCounter(budget, spillDir);
+                    }
+                    long chunkBytes = chunks.map(chunk, tokenizer);
+                    bytes += chunkBytes;
+                    metrics.record("map.chunkBytes", chunkBytes);
+                }
+                setAside();
+            } else {
+                for (String line : lines) {
+                    tokenizer.line(line);
+                    bytes += line.length() + 1;
+                }
+            }
+            if (buffers == null && fileCounts == null) {
+                sample();
+            }
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Map error in worker " + id + ": " + e.getMessage());
+            failed = true;
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+        }
+        if (buffers != null) {
+            // Each reducer waits for an end marker from every mapper, even after a map error
+            for (int r = 0; r < numWorkers; r++) {
+                deliver(r);
+                deliver(r, END_OF_MAP);
+            }
+        }
+        metrics.increment("map.bytes", bytes);
+        metrics.increment("map.tokens", tokens);
+        metrics.increment("map.spilledBytes", wordFrequency.spilledBytes());
+        metrics.time("map", start);
+    }
+
+    /**
+     * Key load statistics for the skew-aware partitioner, over this worker's counts. Run at the
+     * end of the map, or by the caller in per-file mode once the per-file counts are added back.
+     */
+    public void sample() throws IOException {
+        long[] keys = new long[1];
+        wordFrequency.forEach((b, off, len, count) -> {
+            sampler.visit(b, off, len, count);
+            keys[0]++;
+        });
+        metrics.increment("map.distinctKeys", keys[0]);
+    }
+
+    /**
+     * Per-file mode, to be set before run(): the counts of each file of the queue are kept apart,
+     * in fileCounts.get(file) (synchronized lists shared by all workers), instead of being added
+     * to this worker's counter, e.g. to be cached file by file.
+     */
+    public void collectPerFile(List<List<SpillingCounter>> fileCounts) {
+        this.fileCounts = fileCounts;
+    }
+
+    private void setAside() throws IOException {
+        if (current != null) {
+            // Moved to disk, only the counter of the file being read stays in memory
+            current.flush();
+            fileCounts.get(currentFile).add(current);
+            current = null;
+        }
+    }
+
+    /**
+     * True if the map stopped on a read error: its counts are incomplete.
+     */
+    public boolean mapFailed() {
+        return failed;
+    }
+
+    /**
+     * True if the keys sent by this worker, or those it received, hit a spill I/O error:
+     * some partitions are incomplete.
+     */
+    public boolean shuffleFailed() {
+        return shuffleFailed;
+    }
+
+    /**
+     * True if reading this worker's partition stopped on a spill I/O error: its top-k is incomplete.
+     */
+    public boolean reduceFailed() {
+        return reduceFailed;
+    }
+
+    /**
+     * Pipelined mode, to be set before run(): map output is partitioned while counting, and each
+     * partition buffer is handed to its reducer (see {@link #receive()}) as soon as its footprint
+     * exceeds flushBytes, instead of waiting for the end of the map phase. The partitioner cannot
+     * depend on map statistics here, so it is normally a plain hash partitioner.
+     */
+    public void pipelineTo(ChunkWordFrequencyThread[] workers, Partitioner partitioner, long flushBytes) {
+        this.workersRef = workers;
+        this.partitioner = partitioner;
+        this.flushBytes = flushBytes;
+        this.buffers = new WordCounter[numWorkers];
+        for (int r = 0; r < numWorkers; r++) {
+            buffers[r] = new WordCounter();
+        }
+        // Bounded: a mapper running ahead of a slow reducer waits instead of piling up buffers
+        this.inbox = new ArrayBlockingQueue<>(2 * numWorkers);
+    }
+
+    private void deliver(int dest) {
+        if (buffers[dest].isEmpty()) {
+            return;
+        }
+        metrics.increment("shuffle.keysSent." + dest, buffers[dest].size());
+        metrics.increment("shuffle.buffersSent." + dest);
+        deliver(dest, buffers[dest]);
+        buffers[dest] = new WordCounter();
+    }
+
+    private void deliver(int dest, WordCounter buffer) {
+        try {
+            workersRef[dest].inbox.put(buffer);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reducer side of the pipelined mode, on its own thread while the mappers run: merge the
+     * partition buffers addressed to this worker as they arrive, until every mapper is done.
+     */
+    public void receive() {
+        long start = System.nanoTime();
+        int ended = 0;
+        try {
+            while (ended < numWorkers) {
+                WordCounter buffer = inbox.take();
+                if (buffer == END_OF_MAP) {
+                    ended++;
+                    continue;
                 }
+                long merge = System.nanoTime();
+                try {
+                    receivedData.addAll(buffer);
+                } catch (UncheckedIOException e) {
+                    // Keep draining the inbox, or the mappers would block on it
+                    System.err.println("Shuffle error in worker " + id + ": " + e.getMessage());
+                    shuffleFailed = true;
+                }
+                metrics.time("shuffle.merge", merge);
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        metrics.time("shuffle.execute", start);
+    }
+
+    /**
+     * Counters and timers of this worker's map, shuffle and reduce.
+     */
+    public Metrics getMetrics() {
+        return metrics;
     }
 
-    public Map<String, Integer> getWordFrequency() {
+    public Partitioner.Sampler getSampler() {
+        return sampler;
+    }
+
+    /**
+     * Set the partitioning plan shared by all workers (plain hash partitioning if never set).
+     */
+    public void setPartitioner(Partitioner partitioner) {
+        this.partitioner = partitioner;
+    }
+
+    public SpillingCounter getWordFrequency() {
         return wordFrequency;
     }
 
@@ -47,37 +278,101 @@ public class ChunkWordFrequencyThread implements Runnable {
     }
 
     /**
-     * Prepare data buckets by computing hash modulo numWorkers.
+     * Sender side: split the local counts into one buffer per destination, as chosen by the partitioner.
+     * Only touches this worker's own row, so all workers can run it concurrently without locking.
      */
     public void prepareShuffle() {
-        for (Map.Entry<String, Integer> entry : wordFrequency.entrySet()) {
-            int dest = (entry.getKey().hashCode() & Integer.MAX_VALUE) % numWorkers;
-            shuffleBuckets
-                    .computeIfAbsent(dest, k -> new HashMap<>())
-                    .put(entry.getKey(), entry.getValue());
+        if (partitioner == null) {
+            partitioner = Partitioner.hash(numWorkers);
+        }
+        long start = System.nanoTime();
+        for (int r = 0; r < numWorkers; r++) {
+            outgoing[r] = new SpillingCounter(budget / numWorkers, spillDir);
+        }
+        long[] sent = new long[numWorkers];
+        try {
+            wordFrequency.forEach((b, off, len, count) -> {
+                int h = WordCounter.hash(b, off, len);
+                int dest = partitioner.partition(b, off, len, h, id);
+                outgoing[dest].add(b, off, len, h, count);
+                sent[dest]++;
+            });
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Shuffle error in worker " + id + ": " + e.getMessage());
+            shuffleFailed = true;
         }
+        wordFrequency.close();
+        for (int r = 0; r < numWorkers; r++) {
+            metrics.increment("shuffle.keysSent." + r, sent[r]);
+        }
+        metrics.time("shuffle.prepare", start);
     }
 
     /**
-     * Send each bucket to its destination worker.
+     * Receiver side: merge the column of buffers addressed to this worker.
+     * Must run after every worker has finished prepareShuffle() (barrier); each receiver
+     * only reads its own column, so no locking is needed either. Spilled runs are taken
+     * over as they are, without being read.
      */
     public void executeShuffle() {
-        for (Map.Entry<Integer, Map<String, Integer>> bucket : shuffleBuckets.entrySet()) {
-            int dest = bucket.getKey();
-            workersRef[dest].receiveShuffleData(bucket.getValue());
+        long start = System.nanoTime();
+        for (ChunkWordFrequencyThread sender : workersRef) {
+            try {
+                receivedData.addAll(sender.outgoing[id]);
+            } catch (IOException | UncheckedIOException e) {
+                System.err.println("Shuffle error in worker " + id + ": " + e.getMessage());
+                shuffleFailed = true;
+            }
+            sender.outgoing[id].close();
+            sender.outgoing[id] = null;
         }
+        metrics.time("shuffle.execute", start);
+    }
+
+    public SpillingCounter getReceivedData() {
+        return receivedData;
     }
 
     /**
-     * Receive incoming data for reduction.
+     * Reduce this worker's partition: after the shuffle it holds the final count of every
+     * word assigned to it, so only its local top-k has to be kept for the master. Hot keys
+     * split over several workers are left out and their partial counts kept apart.
+     * Spilled runs are k-way merged in a single pass.
      */
-    public synchronized void receiveShuffleData(Map<String, Integer> data) {
-        for (Map.Entry<String, Integer> entry : data.entrySet()) {
-            receivedData.merge(entry.getKey(), entry.getValue(), Integer::sum);
+    public void reduce(int k) {
+        long start = System.nanoTime();
+        WordCounter hot = partitioner.hotKeys();
+        TopK.Selector selector = new TopK.Selector(k);
+        long[] keys = new long[1];
+        metrics.increment("reduce.spilledBytes", receivedData.spilledBytes());
+        try {
+            receivedData.forEach((b, off, len, count) -> {
+                keys[0]++;
+                if (!hot.isEmpty() && hot.get(b, off, len) != 0) {
+                    hotPartials.add(b, off, len, count);
+                } else {
+                    selector.visit(b, off, len, count);
+                }
+            });
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Reduce error in worker " + id + ": " + e.getMessage());
+            reduceFailed = true;
         }
+        topK = selector.result();
+        receivedData.close();
+        metrics.increment("reduce.keys", keys[0]);
+        metrics.increment("reduce.hotKeys", hotPartials.size());
+        metrics.time("reduce", start);
     }
 
-    public Map<String, Integer> getReceivedData() {
-        return receivedData;
+    public List<WordCount> getTopK() {
+        return topK;
+    }
+
+    /**
+     * Partial counts of the hot keys received by this worker, to be summed across workers.
+     */
+    public WordCounter getHotPartials() {
+        return hotPartials;
     }
 }
\ No newline at end of file
@@ -0,0 +1,132 @@
+package mapreduce;
+
+import java.io.EOFException;
+
+/**
+ * Count-Min Sketch: approximate counts in a fixed depth x width table of counters.
+ *
+ * Adding a key increments one counter per row; its estimate is the minimum of
+ * those counters. Estimates never undercount, and with width = ceil(e / epsilon)
+ * and depth = ceil(ln(1 / delta)) they overcount by at most epsilon * total with
+ * probability 1 - delta. Sketches of the same shape merge by adding their tables,
+ * so per-mapper sketches can be combined in any order.
+ *
+ * Keys are given by their String-compatible hash (see {@link WordCounter#hash}),
+ * from which the row positions are derived by double hashing. Not thread-safe.
+ */
+public final class CountMinSketch {
+    private final int width;
+    private final int depth;
+    private final long[] cells;
+    private long total;
+
+    public CountMinSketch(int width, int depth) {
+        if (width <= 0 || depth <= 0) {
+            throw new IllegalArgumentException("Invalid sketch shape " + depth + "x" + width);
+        }
+        this.width = width;
+        this.depth = depth;
+        this.cells = new long[width * depth];
+    }
+
+    /**
+     * Smallest sketch that overcounts by at most epsilon * total with probability 1 - delta.
+     */
+    public static CountMinSketch withErrorBounds(double epsilon, double delta) {
+        int width = (int) Math.ceil(Math.E / epsilon);
+        int depth = (int) Math.ceil(Math.log(1 / delta));
+        return new CountMinSketch(width, Math.max(1, depth));
+    }
+
+    /**
+     * Sketch sized by the mapreduce.sketch.epsilon (0.001 by default) and
+     * mapreduce.sketch.delta (0.01 by default) system properties.
+     */
+    public static CountMinSketch fromSystemProperty() {
+        return withErrorBounds(Double.parseDouble(System.getProperty("mapreduce.sketch.epsilon", "0.001")),
+                Double.parseDouble(System.getProperty("mapreduce.sketch.delta", "0.01")));
+    }
+
+    public void add(int h, long delta) {
+        int h1 = WordCounter.mix(h);
+        int h2 = WordCounter.mix(h1 ^ 0x9E3779B9) | 1;
+        for (int row = 0; row < depth; row++) {
+            cells[row * width + Math.floorMod(h1 + row * h2, width)] += delta;
+        }
+        total += delta;
+    }
+
+    public long estimate(int h) {
+        int h1 = WordCounter.mix(h);
+        int h2 = WordCounter.mix(h1 ^ 0x9E3779B9) | 1;
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            min = Math.min(min, cells[row * width + Math.floorMod(h1 + row * h2, width)]);
+        }
+        return min;
+    }
+
+    public long estimate(byte[] b, int off, int len) {
+        return estimate(WordCounter.hash(b, off, len));
+    }
+
+    /**
+     * Add the counters of a sketch of the same shape.
+     */
+    public void addAll(CountMinSketch other) {
+        if (other.width != width || other.depth != depth) {
+            throw new IllegalArgumentException("Cannot merge a " + other.depth + "x" + other.width
+                    + " sketch into a " + depth + "x" + width + " one");
+        }
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] += other.cells[i];
+        }
+        total += other.total;
+    }
+
+    /**
+     * Sum of every count added, i.e. the number of tokens seen.
+     */
+    public long total() {
+        return total;
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int depth() {
+        return depth;
+    }
+
+    /**
+     * Upper bound of the encoded size, in bytes.
+     */
+    int maxEncodedBytes() {
+        return 3 * 10 + cells.length * 10;
+    }
+
+    /**
+     * Varint encoding: width, depth, total, then every cell row by row.
+     * Returns the position after the last byte written.
+     */
+    int encode(byte[] buf, int pos) {
+        pos = ShuffleProtocol.putVarLong(buf, pos, width);
+        pos = ShuffleProtocol.putVarLong(buf, pos, depth);
+        pos = ShuffleProtocol.putVarLong(buf, pos, total);
+        for (long cell : cells) {
+            pos = ShuffleProtocol.putVarLong(buf, pos, cell);
+        }
+        return pos;
+    }
+
+    static CountMinSketch decode(byte[] buf, int[] pos) throws EOFException {
+        CountMinSketch sketch = new CountMinSketch((int) ShuffleProtocol.getVarLong(buf, pos),
+                (int) ShuffleProtocol.getVarLong(buf, pos));
+        sketch.total = ShuffleProtocol.getVarLong(buf, pos);
+        for (int i = 0; i < sketch.cells.length; i++) {
+            sketch.cells[i] = ShuffleProtocol.getVarLong(buf, pos);
+        }
+        return sketch;
+    }
+}
@@ -0,0 +1,122 @@
+package mapreduce;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Byte-offset input splitting: cuts a file into ranges that start right after
+ * a newline, so that no line (and no word) straddles two ranges, and feeds a
+ * range to a {@link Tokenizer} through memory-mapped windows or a fixed-size
+ * read buffer.
+ *
+ * Only the few bytes around each cut point are read to align the ranges, the
+ * file content itself is never loaded on the heap.
+ */
+public final class FileSplits {
+    // Buffer size used by stream()
+    static final int STREAM_BUFFER = 64 * 1024;
+    // A single mapping is limited to Integer.MAX_VALUE bytes, larger ranges are mapped window by window
+    static final long MAX_WINDOW = 1L << 30;
+
+    private FileSplits() {
+    }
+
+    /**
+     * Split the channel into at most parts ranges aligned on line starts.
+     * Range i is [bounds[i], bounds[i + 1]); empty ranges are possible on tiny files.
+     */
+    public static long[] split(FileChannel channel, int parts) throws IOException {
+        return split(channel, 0, channel.size(), parts);
+    }
+
+    /**
+     * Split the bytes [start, end) of the channel, start being a line start, into at most parts
+     * ranges aligned on line starts (e.g. a map task shared by several threads).
+     */
+    public static long[] split(FileChannel channel, long start, long end, int parts) throws IOException {
+        long[] bounds = new long[parts + 1];
+        bounds[0] = start;
+        bounds[parts] = end;
+        for (int i = 1; i < parts; i++) {
+            long target = Math.max(start + (end - start) / parts * i, bounds[i - 1]);
+            bounds[i] = nextLineStart(channel, target, end);
+        }
+        return bounds;
+    }
+
+    /**
+     * Smallest offset >= pos that starts a line (or size if there is none).
+     */
+    public static long nextLineStart(FileChannel channel, long pos, long size) throws IOException {
+        if (pos <= 0) {
+            return 0;
+        }
+        // pos starts a line iff the byte just before it is a newline
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        long offset = pos - 1;
+        while (offset < size) {
+            buf.clear();
+            int n = channel.read(buf, offset);
+            if (n <= 0) {
+                break;
+            }
+            for (int i = 0; i < n; i++) {
+                if (buf.get(i) == '\n') {
+                    return offset + i + 1;
+                }
+            }
+            offset += n;
+        }
+        return size;
+    }
+
+    /**
+     * Tokenize the bytes [start, end) of the channel through read-only mappings.
+     * The word in progress at end is flushed.
+     */
+    public static void tokenize(FileChannel channel, long start, long end, Tokenizer tokenizer) throws IOException {
+        for (long pos = start; pos < end; pos += MAX_WINDOW) {
+            long len = Math.min(MAX_WINDOW, end - pos);
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, pos, len);
+            tokenizer.feed(window);
+        }
+        tokenizer.finish();
+    }
+
+    /**
+     * Tokenize the bytes [start, end) of the channel through positional reads into one
+     * fixed-size heap buffer, so memory stays bounded whatever the range size.
+     * The word in progress at end is flushed.
+     */
+    public static void stream(FileChannel channel, long start, long end, Tokenizer tokenizer) throws IOException {
+        stream(channel, start, end, tokenizer, () -> false);
+    }
+
+    /**
+     * Same as {@link #stream(FileChannel, long, long, Tokenizer)}, checking cancelled before each
+     * buffer. Returns false, without flushing, if the read was cancelled.
+     */
+    public static boolean stream(FileChannel channel, long start, long end, Tokenizer tokenizer,
+                                 BooleanSupplier cancelled) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(STREAM_BUFFER);
+        long pos = start;
+        while (pos < end) {
+            if (cancelled.getAsBoolean()) {
+                return false;
+            }
+            buf.clear();
+            buf.limit((int) Math.min(STREAM_BUFFER, end - pos));
+            int n = channel.read(buf, pos);
+            if (n <= 0) {
+                break;
+            }
+            tokenizer.feed(buf.array(), 0, n);
+            pos += n;
+        }
+        tokenizer.finish();
+        return true;
+    }
+}
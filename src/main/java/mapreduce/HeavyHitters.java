@@ -0,0 +1,353 @@
+package mapreduce;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Approximate word counting in constant memory: a Space-Saving summary of the
+ * heaviest keys plus a {@link CountMinSketch} of all of them.
+ *
+ * Space-Saving monitors at most capacity keys. A new key takes the slot of the
+ * monitored key with the smallest count and inherits that count, which it may
+ * overestimate by at most total / capacity; every key more frequent than that
+ * is guaranteed to be monitored. The reported count of a key is the smaller of
+ * its Space-Saving count and its sketch estimate, both upper bounds.
+ *
+ * Summaries merge as in Agarwal et al., "Mergeable summaries": counts of the
+ * keys both monitor are added, a key missing from a full summary gets that
+ * summary's minimum count, and the capacity heaviest keys are kept. A summary
+ * travels on the control channel as one line of text (see {@link #encode()}).
+ *
+ * Not thread-safe.
+ */
+public final class HeavyHitters {
+    private final int capacity;
+    private final CountMinSketch sketch;
+    // Monitored keys, by slot
+    private final byte[][] keys;
+    private final int[] lengths;
+    private final int[] hashes;
+    private final long[] counts;
+    private final long[] errors;
+    private int size;
+    // Min-heap of slots by count, and position of each slot in it
+    private final int[] heap;
+    private final int[] heapIndex;
+    // key hash -> slot + 1, 0 for an empty entry (linear probing)
+    private final int[] table;
+    private final int mask;
+
+    public HeavyHitters(int capacity, CountMinSketch sketch) {
+        this.capacity = Math.max(1, capacity);
+        this.sketch = sketch;
+        this.keys = new byte[this.capacity][];
+        this.lengths = new int[this.capacity];
+        this.hashes = new int[this.capacity];
+        this.counts = new long[this.capacity];
+        this.errors = new long[this.capacity];
+        this.heap = new int[this.capacity];
+        this.heapIndex = new int[this.capacity];
+        int tableSize = Integer.highestOneBit(this.capacity * 2 - 1) << 1;
+        this.table = new int[tableSize];
+        this.mask = tableSize - 1;
+    }
+
+    /**
+     * Summary sized by the mapreduce.sketch.capacity (1024 keys by default), mapreduce.sketch.epsilon
+     * and mapreduce.sketch.delta system properties (see {@link CountMinSketch#fromSystemProperty()}).
+     */
+    public static HeavyHitters fromSystemProperty() {
+        return new HeavyHitters(Integer.getInteger("mapreduce.sketch.capacity", 1024), CountMinSketch.fromSystemProperty());
+    }
+
+    /**
+     * Approximate mode (mapreduce.approximate=true): engines keep a HeavyHitters per mapper
+     * instead of the exact counts of the whole vocabulary.
+     */
+    public static boolean enabledBySystemProperty() {
+        return Boolean.getBoolean("mapreduce.approximate");
+    }
+
+    public void add(byte[] b, int off, int len) {
+        add(b, off, len, WordCounter.hash(b, off, len), 1);
+    }
+
+    void add(byte[] b, int off, int len, int h, long delta) {
+        sketch.add(h, delta);
+        int slot = find(b, off, len, h);
+        if (slot >= 0) {
+            counts[slot] += delta;
+            siftDown(heapIndex[slot]);
+        } else if (size < capacity) {
+            slot = size++;
+            monitor(slot, b, off, len, h, delta, 0);
+            heap[slot] = slot;
+            heapIndex[slot] = slot;
+            siftUp(slot);
+        } else {
+            // Evict the lightest key: the newcomer inherits its count as error
+            slot = heap[0];
+            unlink(slot);
+            long min = counts[slot];
+            monitor(slot, b, off, len, h, min + delta, min);
+            siftDown(0);
+        }
+    }
+
+    /**
+     * Merge another summary into this one (the sketches must have the same shape).
+     */
+    public void addAll(HeavyHitters other) {
+        sketch.addAll(other.sketch);
+        long myMin = size == capacity ? counts[heap[0]] : 0;
+        long otherMin = other.size == other.capacity ? other.counts[other.heap[0]] : 0;
+        List<Entry> merged = new ArrayList<>(size + other.size);
+        for (int s = 0; s < size; s++) {
+            int o = other.find(keys[s], 0, lengths[s], hashes[s]);
+            merged.add(new Entry(Arrays.copyOf(keys[s], lengths[s]), lengths[s], hashes[s],
+                    counts[s] + (o >= 0 ? other.counts[o] : otherMin),
+                    errors[s] + (o >= 0 ? other.errors[o] : otherMin)));
+        }
+        for (int o = 0; o < other.size; o++) {
+            if (find(other.keys[o], 0, other.lengths[o], other.hashes[o]) < 0) {
+                merged.add(new Entry(Arrays.copyOf(other.keys[o], other.lengths[o]), other.lengths[o], other.hashes[o],
+                        other.counts[o] + myMin, other.errors[o] + myMin));
+            }
+        }
+        merged.sort((x, y) -> Long.compare(y.count, x.count));
+        Arrays.fill(table, 0);
+        size = 0;
+        for (Entry e : merged) {
+            if (size == capacity) {
+                break;
+            }
+            int slot = size++;
+            monitor(slot, e.key, 0, e.length, e.hash, e.count, e.error);
+            heap[slot] = slot;
+            heapIndex[slot] = slot;
+            siftUp(slot);
+        }
+    }
+
+    /**
+     * The k heaviest monitored keys, each with min(Space-Saving count, sketch estimate).
+     */
+    public List<WordCount> top(int k) {
+        TopK.Selector selector = new TopK.Selector(k);
+        for (int s = 0; s < size; s++) {
+            selector.visit(keys[s], 0, lengths[s], Math.min(counts[s], sketch.estimate(hashes[s])));
+        }
+        return selector.result();
+    }
+
+    /**
+     * Approximate count of any key, monitored or not.
+     */
+    public long estimate(byte[] b, int off, int len) {
+        int h = WordCounter.hash(b, off, len);
+        int slot = find(b, off, len, h);
+        long estimate = sketch.estimate(h);
+        return slot >= 0 ? Math.min(counts[slot], estimate) : estimate;
+    }
+
+    /**
+     * Bound on the overestimate of a reported count: total / capacity for Space-Saving,
+     * and e / width * total for the sketch (with probability 1 - delta).
+     */
+    public long errorBound() {
+        long total = sketch.total();
+        return (long) Math.ceil(Math.min((double) total / capacity, Math.E / sketch.width() * total));
+    }
+
+    public long total() {
+        return sketch.total();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Text form for the control channel: Base64 of the deflated binary encoding
+     * (capacity, sketch, then length, bytes, count, error of each monitored key).
+     */
+    public String encode() {
+        int bytes = 10 + sketch.maxEncodedBytes() + 10;
+        for (int s = 0; s < size; s++) {
+            bytes += 30 + lengths[s];
+        }
+        byte[] buf = new byte[bytes];
+        int pos = ShuffleProtocol.putVarLong(buf, 0, capacity);
+        pos = sketch.encode(buf, pos);
+        pos = ShuffleProtocol.putVarLong(buf, pos, size);
+        for (int s = 0; s < size; s++) {
+            pos = ShuffleProtocol.putVarLong(buf, pos, lengths[s]);
+            System.arraycopy(keys[s], 0, buf, pos, lengths[s]);
+            pos += lengths[s];
+            pos = ShuffleProtocol.putVarLong(buf, pos, counts[s]);
+            pos = ShuffleProtocol.putVarLong(buf, pos, errors[s]);
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(buf, 0, pos);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(pos / 4 + 64);
+        byte[] chunk = new byte[64 * 1024];
+        while (!deflater.finished()) {
+            out.write(chunk, 0, deflater.deflate(chunk));
+        }
+        deflater.end();
+        return Base64.getEncoder().encodeToString(out.toByteArray());
+    }
+
+    public static HeavyHitters decode(String text) throws EOFException {
+        byte[] compressed = Base64.getDecoder().decode(text);
+        Inflater inflater = new Inflater();
+        inflater.setInput(compressed);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 4);
+        byte[] chunk = new byte[64 * 1024];
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(chunk);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new EOFException("Truncated heavy hitters summary");
+                }
+                out.write(chunk, 0, n);
+            }
+        } catch (DataFormatException e) {
+            throw new EOFException("Corrupt heavy hitters summary: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        byte[] buf = out.toByteArray();
+        int[] pos = {0};
+        int capacity = (int) ShuffleProtocol.getVarLong(buf, pos);
+        HeavyHitters hh = new HeavyHitters(capacity, CountMinSketch.decode(buf, pos));
+        int n = (int) ShuffleProtocol.getVarLong(buf, pos);
+        for (int i = 0; i < n; i++) {
+            int len = (int) ShuffleProtocol.getVarLong(buf, pos);
+            if (pos[0] + len > buf.length) {
+                throw new EOFException("Truncated heavy hitters summary");
+            }
+            int off = pos[0];
+            pos[0] += len;
+            long count = ShuffleProtocol.getVarLong(buf, pos);
+            long error = ShuffleProtocol.getVarLong(buf, pos);
+            int slot = hh.size++;
+            hh.monitor(slot, buf, off, len, WordCounter.hash(buf, off, len), count, error);
+            hh.heap[slot] = slot;
+            hh.heapIndex[slot] = slot;
+            hh.siftUp(slot);
+        }
+        return hh;
+    }
+
+    @Override
+    public String toString() {
+        return size + " heavy hitters of " + total() + " tokens, sketch " + sketch.depth() + "x" + sketch.width();
+    }
+
+    // ---- Slots ----
+
+    private void monitor(int slot, byte[] b, int off, int len, int h, long count, long error) {
+        if (keys[slot] == null || keys[slot].length < len) {
+            keys[slot] = new byte[Math.max(len, 16)];
+        }
+        System.arraycopy(b, off, keys[slot], 0, len);
+        lengths[slot] = len;
+        hashes[slot] = h;
+        counts[slot] = count;
+        errors[slot] = error;
+        int i = WordCounter.mix(h) & mask;
+        while (table[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        table[i] = slot + 1;
+    }
+
+    private int find(byte[] b, int off, int len, int h) {
+        for (int i = WordCounter.mix(h) & mask; table[i] != 0; i = (i + 1) & mask) {
+            int slot = table[i] - 1;
+            if (hashes[slot] == h && WordCounter.compareKeys(keys[slot], 0, lengths[slot], b, off, len) == 0) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    // Remove a slot from the table, shifting back the entries of its probe run
+    private void unlink(int slot) {
+        int i = WordCounter.mix(hashes[slot]) & mask;
+        while (table[i] != slot + 1) {
+            i = (i + 1) & mask;
+        }
+        int gap = i;
+        for (int j = (gap + 1) & mask; table[j] != 0; j = (j + 1) & mask) {
+            int home = WordCounter.mix(hashes[table[j] - 1]) & mask;
+            // Entry j may fill the gap if its home is not cyclically in (gap, j]
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                table[gap] = table[j];
+                gap = j;
+            }
+        }
+        table[gap] = 0;
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (counts[heap[parent]] <= counts[heap[i]]) {
+                return;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                return;
+            }
+            if (child + 1 < size && counts[heap[child + 1]] < counts[heap[child]]) {
+                child++;
+            }
+            if (counts[heap[i]] <= counts[heap[child]]) {
+                return;
+            }
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int a = heap[i];
+        heap[i] = heap[j];
+        heap[j] = a;
+        heapIndex[heap[i]] = i;
+        heapIndex[heap[j]] = j;
+    }
+
+    private static final class Entry {
+        final byte[] key;
+        final int length;
+        final int hash;
+        final long count;
+        final long error;
+
+        Entry(byte[] key, int length, int hash, long count, long error) {
+            this.key = key;
+            this.length = length;
+            this.hash = hash;
+            this.count = count;
+            this.error = error;
+        }
+    }
+}
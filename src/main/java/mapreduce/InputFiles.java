@@ -0,0 +1,63 @@
+package mapreduce;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Input of a job: a single file, a directory (its regular files, not recursively,
+ * hidden files excluded) or a glob such as texts/*.warc.wet.gz or crawl/**.wet.
+ * Resolved to a sorted list of files, so every run sees the same order.
+ */
+public final class InputFiles {
+    private InputFiles() {
+    }
+
+    public static List<Path> resolve(String spec) throws IOException {
+        int glob = firstGlobChar(spec);
+        if (glob < 0) {
+            Path path = Paths.get(spec);
+            if (!Files.isDirectory(path)) {
+                return Collections.singletonList(path);
+            }
+            try (Stream<Path> files = Files.list(path)) {
+                return sorted(files.filter(p -> !p.getFileName().toString().startsWith(".")));
+            }
+        }
+        // The directories before the first wildcard are walked, the rest of the pattern is matched
+        int slash = spec.lastIndexOf('/', glob);
+        Path base = slash < 0 ? Paths.get(".") : Paths.get(slash == 0 ? "/" : spec.substring(0, slash));
+        String pattern = spec.substring(slash + 1);
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        int depth = pattern.contains("**") ? Integer.MAX_VALUE : pattern.split("/", -1).length;
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(base, depth)) {
+            files = sorted(walk.filter(p -> matcher.matches(base.relativize(p))));
+        }
+        if (files.isEmpty()) {
+            throw new NoSuchFileException(spec, null, "no input file matches");
+        }
+        return files;
+    }
+
+    private static List<Path> sorted(Stream<Path> paths) {
+        return paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+    }
+
+    private static int firstGlobChar(String spec) {
+        for (int i = 0; i < spec.length(); i++) {
+            if ("*?[{".indexOf(spec.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,322 @@
+package mapreduce;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Layout of an input file, detected from its first bytes: plain text, a WET file
+ * (WARC records, only the text payloads are counted) or a gzipped WET file.
+ *
+ * Each format splits a byte range into independent pieces and reads a piece:
+ * text on line starts, WET on record starts (reached from header to header by
+ * Content-Length, payloads are skipped unread), and gzipped WET on gzip member
+ * starts. Common Crawl compresses every record as its own gzip member, so the
+ * members of a .warc.wet.gz file are decompressed in parallel, piece by piece.
+ */
+public enum InputFormat {
+    TEXT, WET, WET_GZ;
+
+    private static final byte[] WARC_START = "WARC/".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Format of the file open on channel.
+     */
+    public static InputFormat of(FileChannel channel) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(WARC_START.length);
+        while (head.hasRemaining() && channel.read(head, head.position()) > 0) {
+            // read the first bytes, the file may be shorter
+        }
+        byte[] b = head.array();
+        if (head.position() >= 2 && (b[0] & 0xFF) == 0x1F && (b[1] & 0xFF) == 0x8B) {
+            if (!startsWithWarc(channel, 0, channel.size())) {
+                throw new IOException("Unsupported gzip input: not a WARC file");
+            }
+            return WET_GZ;
+        }
+        return startsWith(b, 0, head.position(), WARC_START) ? WET : TEXT;
+    }
+
+    public static InputFormat of(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return of(channel);
+        }
+    }
+
+    /**
+     * Split the channel into at most parts pieces, see {@link #split(FileChannel, long, long, int)}.
+     */
+    public long[] split(FileChannel channel, int parts) throws IOException {
+        return split(channel, 0, channel.size(), parts);
+    }
+
+    /**
+     * Split the bytes [start, end) of the channel, start being a piece start, into at most parts
+     * pieces that can be read independently. Piece i is [bounds[i], bounds[i + 1]).
+     */
+    public long[] split(FileChannel channel, long start, long end, int parts) throws IOException {
+        if (this == TEXT) {
+            return FileSplits.split(channel, start, end, parts);
+        }
+        long[] bounds = new long[parts + 1];
+        bounds[0] = start;
+        bounds[parts] = end;
+        if (this == WET) {
+            // Record starts are found by walking the headers, from start: a payload may hold any text
+            long record = start;
+            for (int i = 1; i < parts; i++) {
+                long target = start + (end - start) / parts * i;
+                while (record < target) {
+                    record = Math.min(end, nextRecord(channel, record));
+                }
+                bounds[i] = record;
+            }
+            return bounds;
+        }
+        for (int i = 1; i < parts; i++) {
+            long target = Math.max(start + (end - start) / parts * i, bounds[i - 1]);
+            bounds[i] = nextMemberStart(channel, target, end);
+        }
+        return bounds;
+    }
+
+    /**
+     * Tokenize the piece [start, end) of the channel, checking cancelled before each buffer.
+     * Returns false, without flushing, if the read was cancelled.
+     */
+    public boolean read(FileChannel channel, long start, long end, Tokenizer tokenizer,
+                        BooleanSupplier cancelled) throws IOException {
+        if (this == TEXT) {
+            return FileSplits.stream(channel, start, end, tokenizer, cancelled);
+        }
+        byte[] buf = new byte[FileSplits.STREAM_BUFFER];
+        try (InputStream in = open(channel, start, end)) {
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                if (cancelled.getAsBoolean()) {
+                    return false;
+                }
+                tokenizer.feed(buf, 0, n);
+            }
+        }
+        tokenizer.finish();
+        return true;
+    }
+
+    /**
+     * Text of the piece [start, end) of the channel: decompressed, WARC headers removed.
+     * Closing the stream leaves the channel open.
+     */
+    public InputStream open(FileChannel channel, long start, long end) throws IOException {
+        if (start >= end) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        return decode(new RangeInputStream(channel, start, end));
+    }
+
+    /**
+     * Text of the whole file, read sequentially (e.g. to send it line by line).
+     */
+    public BufferedReader reader(Path path) throws IOException {
+        InputStream raw = Files.newInputStream(path);
+        try {
+            return new BufferedReader(new InputStreamReader(decode(raw), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            raw.close();
+            throw e;
+        }
+    }
+
+    public List<String> readAllLines(Path path) throws IOException {
+        if (this == TEXT) {
+            return Files.readAllLines(path);
+        }
+        try (BufferedReader reader = reader(path)) {
+            return reader.lines().collect(Collectors.toList());
+        }
+    }
+
+    private InputStream decode(InputStream raw) throws IOException {
+        switch (this) {
+            case WET:
+                return new WarcBodyInputStream(raw);
+            case WET_GZ:
+                // GZIPInputStream reads the concatenated members one after the other
+                return new WarcBodyInputStream(new GZIPInputStream(raw, FileSplits.STREAM_BUFFER));
+            default:
+                return raw;
+        }
+    }
+
+    /**
+     * Start of the record that follows the record starting at start, or the file size after
+     * the last one: its header block is parsed for Content-Length, the payload is skipped
+     * without being read, then the blank lines that separate records.
+     */
+    static long nextRecord(FileChannel channel, long start) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(FileSplits.STREAM_BUFFER);
+        int n = Math.max(0, channel.read(buf, start));
+        byte[] b = buf.array();
+        if (!startsWith(b, 0, n, WARC_START)) {
+            throw new IOException("Not a WARC record start at offset " + start);
+        }
+        long length = -1;
+        int line = 0;
+        while (true) {
+            int eol = line;
+            while (eol < n && b[eol] != '\n') {
+                eol++;
+            }
+            if (eol == n) {
+                throw new IOException("WARC header at offset " + start + " longer than " + b.length + " bytes or truncated");
+            }
+            String header = new String(b, line, eol - line, StandardCharsets.US_ASCII).trim();
+            line = eol + 1;
+            if (header.isEmpty()) {
+                break;
+            }
+            int colon = header.indexOf(':');
+            if (colon > 0 && header.substring(0, colon).trim().equalsIgnoreCase("Content-Length")) {
+                try {
+                    length = Long.parseLong(header.substring(colon + 1).trim());
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid WARC Content-Length: " + header);
+                }
+            }
+        }
+        if (length < 0) {
+            throw new IOException("WARC record without Content-Length at offset " + start);
+        }
+        long next = Math.min(channel.size(), start + line + length);
+        ByteBuffer separator = ByteBuffer.allocate(64);
+        while (next < channel.size()) {
+            separator.clear();
+            int m = channel.read(separator, next);
+            int i = 0;
+            while (i < m && (separator.get(i) == '\r' || separator.get(i) == '\n')) {
+                i++;
+            }
+            next += i;
+            if (i < m || m <= 0) {
+                break;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Smallest offset >= pos, below end, that starts a gzip member holding a WARC record
+     * (or end if there is none). A candidate gzip header is confirmed by decompressing
+     * the first bytes of its member.
+     */
+    static long nextMemberStart(FileChannel channel, long pos, long end) throws IOException {
+        if (pos <= 0) {
+            return 0;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(FileSplits.STREAM_BUFFER);
+        byte[] b = buf.array();
+        // ID1, ID2, CM = deflate, FLG with its reserved bits cleared
+        int header = 4;
+        long offset = pos;
+        while (offset < end) {
+            buf.clear();
+            int n = channel.read(buf, offset);
+            if (n <= 0) {
+                break;
+            }
+            for (int i = 0; i + header <= n && offset + i < end; i++) {
+                if ((b[i] & 0xFF) == 0x1F && (b[i + 1] & 0xFF) == 0x8B && b[i + 2] == 8 && (b[i + 3] & 0xE0) == 0
+                        && startsWithWarc(channel, offset + i, end)) {
+                    return offset + i;
+                }
+            }
+            if (n < b.length) {
+                break;
+            }
+            offset += n - header + 1;
+        }
+        return end;
+    }
+
+    /**
+     * True if the bytes [start, end) of the channel start with a gzip member whose content starts a WARC record.
+     */
+    private static boolean startsWithWarc(FileChannel channel, long start, long end) {
+        byte[] first = new byte[WARC_START.length];
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(new RangeInputStream(channel, start, end)))) {
+            in.readFully(first);
+        } catch (IOException e) {
+            return false;
+        }
+        return startsWith(first, 0, first.length, WARC_START);
+    }
+
+    private static boolean startsWith(byte[] b, int off, int limit, byte[] prefix) {
+        if (limit - off < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (b[off + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The bytes [start, end) of a channel, through positional reads so that several
+     * streams can share the channel. Closing the stream leaves the channel open.
+     */
+    private static final class RangeInputStream extends InputStream {
+        private final FileChannel channel;
+        private final long end;
+        private long pos;
+
+        RangeInputStream(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.pos = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (pos >= end) {
+                return -1;
+            }
+            int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - pos)), pos);
+            if (n <= 0) {
+                return -1;
+            }
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            // GZIPInputStream looks for another member only while bytes are available
+            return (int) Math.min(Integer.MAX_VALUE, end - pos);
+        }
+    }
+}
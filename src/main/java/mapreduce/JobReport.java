@@ -0,0 +1,90 @@
+package mapreduce;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Structured per-job report written by the masters: job parameters, the
+ * master's own metrics (phase timers, scheduling counters) and the metrics
+ * reported by each node, as a JSON document.
+ */
+public final class JobReport {
+    private final String engine;
+    private final long startMillis = System.currentTimeMillis();
+    private final Map<String, String> parameters = new LinkedHashMap<>();
+    private final Metrics master = new Metrics();
+    // Node name -> metrics as reported (JSON object)
+    private final Map<String, String> nodes = new LinkedHashMap<>();
+
+    public JobReport(String engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Report file named by the mapreduce.report system property (job-report.json by default).
+     */
+    public static Path pathFromSystemProperty() {
+        return Paths.get(System.getProperty("mapreduce.report", "job-report.json"));
+    }
+
+    public void parameter(String name, Object value) {
+        parameters.put(name, String.valueOf(value));
+    }
+
+    /**
+     * Metrics of the master itself.
+     */
+    public Metrics master() {
+        return master;
+    }
+
+    public synchronized void node(String name, Metrics metrics) {
+        nodes.put(name, metrics.toJson());
+    }
+
+    /**
+     * Metrics of a node, as received from it (a JSON object produced by {@link Metrics#toJson()}).
+     */
+    public synchronized void node(String name, String metricsJson) {
+        nodes.put(name, metricsJson);
+    }
+
+    public synchronized String toJson() {
+        StringBuilder sb = new StringBuilder("{\n");
+        sb.append("  \"engine\": ").append(Metrics.quote(engine)).append(",\n");
+        sb.append("  \"startMillis\": ").append(startMillis).append(",\n");
+        sb.append("  \"durationMs\": ").append(System.currentTimeMillis() - startMillis).append(",\n");
+        sb.append("  \"parameters\": {");
+        boolean first = true;
+        for (Map.Entry<String, String> e : parameters.entrySet()) {
+            sb.append(first ? "" : ", ").append(Metrics.quote(e.getKey())).append(": ").append(Metrics.quote(e.getValue()));
+            first = false;
+        }
+        sb.append("},\n");
+        sb.append("  \"master\": ").append(master.toJson()).append(",\n");
+        sb.append("  \"nodes\": {");
+        first = true;
+        for (Map.Entry<String, String> e : nodes.entrySet()) {
+            sb.append(first ? "\n" : ",\n").append("    ").append(Metrics.quote(e.getKey())).append(": ").append(e.getValue());
+            first = false;
+        }
+        return sb.append(first ? "}\n}\n" : "\n  }\n}\n").toString();
+    }
+
+    /**
+     * Write the report, logging instead of failing the job if the file cannot be written.
+     */
+    public void write(Path file) {
+        try {
+            Files.write(file, toJson().getBytes(StandardCharsets.UTF_8));
+            System.out.println("Job report written to " + file);
+        } catch (IOException e) {
+            System.err.println("Cannot write job report " + file + ": " + e.getMessage());
+        }
+    }
+}
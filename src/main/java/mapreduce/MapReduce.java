@@ -3,54 +3,454 @@ package mapreduce;
 import java.io.*;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class MapReduce {
     public static void main(String[] args) throws IOException, InterruptedException {
         if (args.length < 2) {
-            System.err.println("Usage: java MapReduce <input-file> <num-threads>");
+            System.err.println("Usage: java [-Dmapreduce.input=mmap|lines] [-Dmapreduce.chunkBytes=4194304] [-Dmapreduce.partitioner=skew|hash] [-Dmapreduce.pipeline=true [-Dmapreduce.pipeline.flushBytes=1048576]] [-Dmapreduce.memoryBudget=<bytes>] [-Dmapreduce.spillDir=<dir>] [-Dmapreduce.topK=20] [-Dmapreduce.approximate=true [-Dmapreduce.sketch.capacity=1024] [-Dmapreduce.sketch.epsilon=0.001] [-Dmapreduce.sketch.delta=0.01]] [-Dmapreduce.cache=<dir>] [-Dmapreduce.report=job-report.json] MapReduce <input-file|directory|glob> <num-threads>");
             System.exit(1);
         }
 
-        // ----------- READ FILE AND ARGS -----------
-        List<String> allLines = Files.readAllLines(Paths.get(args[0]));
+        // ----------- READ ARGS -----------
+        List<Path> inputs = InputFiles.resolve(args[0]);
         int numberOfThreads = Integer.parseInt(args[1]);
+        int topK = Integer.getInteger("mapreduce.topK", 20);
 
         long startTime = System.currentTimeMillis();
+        JobReport report = new JobReport("MapReduce");
+        report.parameter("input", args[0]);
+        report.parameter("files", inputs.size());
+        report.parameter("threads", numberOfThreads);
+        report.parameter("topK", topK);
+        report.parameter("approximate", HeavyHitters.enabledBySystemProperty());
+        report.parameter("pipeline", Boolean.getBoolean("mapreduce.pipeline"));
+        List<WordCount> finalTop = run(inputs, numberOfThreads, topK, System.out, report);
+        // Print results
+        StringBuilder sb = new StringBuilder();
+        sb.append("Top ").append(topK).append(" words: \n");
+        for (WordCount e : finalTop) {
+            sb.append(e.getWord())
+                    .append(": ")
+                    .append(e.getCount())
+                    .append("\n");
+        }
+        System.out.print(sb.toString());
+        long endTime = System.currentTimeMillis();
+        System.out.println("MapReduce on file completed in " + (endTime - startTime) + " ms");
+        report.write(JobReport.pathFromSystemProperty());
+    }
 
+    /**
+     * Run the map, shuffle and reduce phases on a file and return its topK most frequent words.
+     * Phase timings are written to log.
+     */
+    public static List<WordCount> run(Path inputPath, int numberOfThreads, int topK, PrintStream log)
+            throws IOException, InterruptedException {
+        return run(inputPath, numberOfThreads, topK, log, new JobReport("MapReduce"));
+    }
+
+    /**
+     * Same as {@link #run(Path, int, int, PrintStream)}, recording phase timers and the metrics
+     * of every worker thread in report.
+     */
+    public static List<WordCount> run(Path inputPath, int numberOfThreads, int topK, PrintStream log,
+                                      JobReport report) throws IOException, InterruptedException {
+        return run(Collections.singletonList(inputPath), numberOfThreads, topK, log, report);
+    }
+
+    /**
+     * Same as {@link #run(Path, int, int, PrintStream, JobReport)} on several files, whose chunks
+     * are shared by all threads. With a result cache (mapreduce.cache), the counts of every file
+     * are cached, and the files unchanged since the previous run are not mapped again.
+     */
+    public static List<WordCount> run(List<Path> inputs, int numberOfThreads, int topK, PrintStream log,
+                                      JobReport report) throws IOException, InterruptedException {
+        if (HeavyHitters.enabledBySystemProperty()) {
+            return runApproximate(inputs, numberOfThreads, topK, log, report);
+        }
+        if (Boolean.getBoolean("mapreduce.pipeline")) {
+            return runPipelined(inputs, numberOfThreads, topK, log, report);
+        }
+        Metrics metrics = report.master();
         // ------------ MAP PHASE ------------
         long startMapTime = System.currentTimeMillis();
+        ChunkWordFrequencyThread[] workers = map(inputs, numberOfThreads, false, ResultCache.fromSystemProperty(), metrics);
+        long endMapTime = System.currentTimeMillis();
+        metrics.recordNanos("phase.map", (endMapTime - startMapTime) * 1000000);
+        log.println("MAP FINISHED");
+        log.println("Mapping time: " + (endMapTime - startMapTime) + " ms");
+        long hits = metrics.counter("cache.hits");
+        if (hits + metrics.counter("cache.misses") > 0) {
+            log.println("Result cache: " + hits + " of " + inputs.size() + " files reused");
+        }
+        // Counters over their share of mapreduce.memoryBudget were spilled to sorted runs on disk
+        long spilled = 0;
+        for (ChunkWordFrequencyThread w : workers) {
+            spilled += w.getWordFrequency().spilledBytes();
+        }
+        if (spilled > 0) {
+            log.println("Map output spilled to disk: " + spilled + " bytes");
+        }
+
+        // ------------ SHUFFLE PHASE ------------
+        long startShuffleTime = System.currentTimeMillis();
+        shuffle(workers);
+        long endShuffleTime = System.currentTimeMillis();
+        metrics.recordNanos("phase.shuffle", (endShuffleTime - startShuffleTime) * 1000000);
+        log.println("SHUFFLE FINISHED");
+        log.println("Shuffle time: " + (endShuffleTime - startShuffleTime) + " ms");
+
+        // ------------ REDUCE PHASE ------------
+        long startReduceTime = System.currentTimeMillis();
+        List<WordCount> finalTop = reduce(workers, topK);
+        long endReduceTime = System.currentTimeMillis();
+        metrics.recordNanos("phase.reduce", (endReduceTime - startReduceTime) * 1000000);
+        log.println("REDUCE FINISHED");
+        log.println("Reduce time: " + (endReduceTime - startReduceTime) + " ms");
+        for (int i = 0; i < numberOfThreads; i++) {
+            report.node("worker-" + i, workers[i].getMetrics());
+        }
+        return finalTop;
+    }
+
+    /**
+     * Pipelined mode: map and shuffle overlap, each mapper handing its combined partition
+     * buffers to the reducers while it is still reading (see
+     * {@link ChunkWordFrequencyThread#pipelineTo}), so their combined time approaches the
+     * longer of the two instead of their sum. Words go to hash % threads, since no map-side
+     * statistics exist before the map ends.
+     */
+    public static List<WordCount> runPipelined(List<Path> inputs, int numberOfThreads, int topK, PrintStream log,
+                                               JobReport report) throws IOException, InterruptedException {
+        Metrics metrics = report.master();
+        long startMapTime = System.currentTimeMillis();
+        ChunkWordFrequencyThread[] workers = map(inputs, numberOfThreads, true, null, metrics);
+        long endMapTime = System.currentTimeMillis();
+        metrics.recordNanos("phase.mapShuffle", (endMapTime - startMapTime) * 1000000);
+        checkShuffle(workers);
+        log.println("MAP + SHUFFLE FINISHED (pipelined)");
+        log.println("Mapping + shuffle time: " + (endMapTime - startMapTime) + " ms");
+        long spilled = 0;
+        for (ChunkWordFrequencyThread w : workers) {
+            spilled += w.getReceivedData().spilledBytes();
+        }
+        if (spilled > 0) {
+            log.println("Shuffle output spilled to disk: " + spilled + " bytes");
+        }
+
+        long startReduceTime = System.currentTimeMillis();
+        List<WordCount> finalTop = reduce(workers, topK);
+        long endReduceTime = System.currentTimeMillis();
+        metrics.recordNanos("phase.reduce", (endReduceTime - startReduceTime) * 1000000);
+        log.println("REDUCE FINISHED");
+        log.println("Reduce time: " + (endReduceTime - startReduceTime) + " ms");
+        for (int i = 0; i < numberOfThreads; i++) {
+            report.node("worker-" + i, workers[i].getMetrics());
+        }
+        return finalTop;
+    }
+
+    /**
+     * Approximate mode: each map thread fills a constant-size {@link HeavyHitters} summary,
+     * the summaries are merged pairwise in parallel (shuffle), and the top K is read from
+     * the merged summary (reduce). Counts may overestimate by at most the logged error bound.
+     */
+    public static List<WordCount> runApproximate(List<Path> inputs, int numberOfThreads, int topK, PrintStream log,
+                                                 JobReport report) throws IOException, InterruptedException {
+        Metrics metrics = report.master();
+        long startMapTime = System.currentTimeMillis();
+        ChunkSketchThread[] workers = mapApproximate(inputs, numberOfThreads);
+        long endMapTime = System.currentTimeMillis();
+        metrics.recordNanos("phase.map", (endMapTime - startMapTime) * 1000000);
+        log.println("MAP FINISHED");
+        log.println("Mapping time: " + (endMapTime - startMapTime) + " ms");
+
+        long startShuffleTime = System.currentTimeMillis();
+        HeavyHitters[] summaries = new HeavyHitters[numberOfThreads];
+        for (int i = 0; i < numberOfThreads; i++) {
+            summaries[i] = workers[i].getSummary();
+        }
+        HeavyHitters merged = mergeSummaries(summaries);
+        long endShuffleTime = System.currentTimeMillis();
+        metrics.recordNanos("phase.shuffle", (endShuffleTime - startShuffleTime) * 1000000);
+        log.println("SHUFFLE FINISHED");
+        log.println("Shuffle time: " + (endShuffleTime - startShuffleTime) + " ms");
+
+        long startReduceTime = System.currentTimeMillis();
+        List<WordCount> finalTop = merged.top(topK);
+        long endReduceTime = System.currentTimeMillis();
+        metrics.recordNanos("phase.reduce", (endReduceTime - startReduceTime) * 1000000);
+        metrics.increment("approx.errorBound", merged.errorBound());
+        log.println("REDUCE FINISHED");
+        log.println("Reduce time: " + (endReduceTime - startReduceTime) + " ms");
+        log.println("Approximate counts (" + merged + "), overestimated by at most " + merged.errorBound());
+        for (int i = 0; i < numberOfThreads; i++) {
+            report.node("worker-" + i, workers[i].getMetrics());
+        }
+        return finalTop;
+    }
+
+    /**
+     * Map phase of the approximate mode, on the same input splits as {@link #map(Path, int)}.
+     */
+    public static ChunkSketchThread[] mapApproximate(Path inputPath, int numberOfThreads)
+            throws IOException, InterruptedException {
+        return mapApproximate(Collections.singletonList(inputPath), numberOfThreads);
+    }
+
+    public static ChunkSketchThread[] mapApproximate(List<Path> inputs, int numberOfThreads)
+            throws IOException, InterruptedException {
+        boolean mapped = !"lines".equals(System.getProperty("mapreduce.input", "mmap"));
+        List<String> allLines = mapped ? null : readAllLines(inputs);
+        ChunkSketchThread[] workers = new ChunkSketchThread[numberOfThreads];
+        Thread[] threads = new Thread[numberOfThreads];
+        try (ChunkQueue chunks = mapped
+                ? ChunkQueue.of(inputs, Long.getLong("mapreduce.chunkBytes", 4L << 20), numberOfThreads)
+                : null) {
+            for (int i = 0; i < numberOfThreads; i++) {
+                if (mapped) {
+                    workers[i] = new ChunkSketchThread(chunks, i);
+                } else {
+                    int chunkSize = allLines.size() / numberOfThreads;
+                    int end = (i == numberOfThreads - 1) ? allLines.size() : (i + 1) * chunkSize;
+                    workers[i] = new ChunkSketchThread(allLines.subList(i * chunkSize, end), i);
+                }
+                threads[i] = new Thread(workers[i]);
+                threads[i].start();
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+        }
+        return workers;
+    }
+
+    /**
+     * Merge summaries pairwise, one thread per pair and log2(n) rounds; returns the merged summary.
+     */
+    static HeavyHitters mergeSummaries(HeavyHitters[] summaries) throws InterruptedException {
+        for (int step = 1; step < summaries.length; step *= 2) {
+            List<Thread> round = new ArrayList<>();
+            for (int i = 0; i + step < summaries.length; i += 2 * step) {
+                HeavyHitters into = summaries[i];
+                HeavyHitters from = summaries[i + step];
+                Thread t = new Thread(() -> into.addAll(from));
+                t.start();
+                round.add(t);
+            }
+            for (Thread t : round) {
+                t.join();
+            }
+        }
+        return summaries[0];
+    }
+
+    /**
+     * Map phase: count the words of the file on numberOfThreads workers.
+     */
+    public static ChunkWordFrequencyThread[] map(Path inputPath, int numberOfThreads)
+            throws IOException, InterruptedException {
+        return map(inputPath, numberOfThreads, false);
+    }
+
+    /**
+     * Map phase; when pipelined, also the shuffle: one receiver thread per worker merges the
+     * partition buffers flushed by the mappers, and both are joined before returning.
+     */
+    public static ChunkWordFrequencyThread[] map(Path inputPath, int numberOfThreads, boolean pipelined)
+            throws IOException, InterruptedException {
+        return map(Collections.singletonList(inputPath), numberOfThreads, pipelined, null, new Metrics());
+    }
+
+    /**
+     * Map phase over several files. With a cache (ignored when pipelined, or when reading
+     * lines), files whose entry is up to date are loaded instead of mapped, and the counts
+     * of the other files are kept apart during the map to be cached file by file.
+     */
+    public static ChunkWordFrequencyThread[] map(List<Path> inputs, int numberOfThreads, boolean pipelined,
+                                                 ResultCache cache, Metrics metrics)
+            throws IOException, InterruptedException {
+        // "mmap" (default) maps newline-aligned byte ranges of the file, "lines" loads it with readAllLines
+        boolean mapped = !"lines".equals(System.getProperty("mapreduce.input", "mmap"));
+        boolean caching = cache != null && mapped && !pipelined;
+        List<Path> toMap = inputs;
+        List<ResultCache.Key> mapKeys = new ArrayList<>();
+        List<ResultCache.Key> cachedKeys = new ArrayList<>();
+        if (caching) {
+            // Keys are taken before reading: a file modified during the map is a miss next time
+            toMap = new ArrayList<>();
+            for (Path input : inputs) {
+                ResultCache.Key key = ResultCache.key(input);
+                if (cache.contains(key)) {
+                    cachedKeys.add(key);
+                } else {
+                    toMap.add(input);
+                    mapKeys.add(key);
+                }
+            }
+            metrics.increment("cache.hits", cachedKeys.size());
+            metrics.increment("cache.misses", toMap.size());
+        }
+        List<String> allLines = mapped ? null : readAllLines(inputs);
         ChunkWordFrequencyThread[] workers = new ChunkWordFrequencyThread[numberOfThreads];
         Thread[] threads = new Thread[numberOfThreads];
-        int totalLines = allLines.size();
-        int chunkSize  = totalLines / numberOfThreads;
+        List<List<SpillingCounter>> fileCounts = new ArrayList<>();
+        // Many small chunks pulled by idle threads instead of one fixed range per thread;
+        // WET files are cut on record starts and only their text payloads are counted
+        try (ChunkQueue chunks = mapped
+                ? ChunkQueue.of(toMap, Long.getLong("mapreduce.chunkBytes", 4L << 20), numberOfThreads)
+                : null) {
+            if (mapped) {
+                for (int f = 0; caching && f < toMap.size(); f++) {
+                    fileCounts.add(Collections.synchronizedList(new ArrayList<>()));
+                }
+                for (int i = 0; i < numberOfThreads; i++) {
+                    workers[i] = new ChunkWordFrequencyThread(chunks, i, numberOfThreads);
+                    if (caching) {
+                        workers[i].collectPerFile(fileCounts);
+                    }
+                }
+            } else {
+                int totalLines = allLines.size();
+                int chunkSize  = totalLines / numberOfThreads;
+                for (int i = 0; i < numberOfThreads; i++) {
+                    int start = i * chunkSize;
+                    int end = (i == numberOfThreads - 1) ? totalLines : (i + 1) * chunkSize;
+                    List<String> chunk = allLines.subList(start, end);
+                    workers[i] = new ChunkWordFrequencyThread(chunk, i, numberOfThreads);
+                }
+            }
+            Thread[] receivers = new Thread[pipelined ? numberOfThreads : 0];
+            if (pipelined) {
+                Partitioner partitioner = Partitioner.hash(numberOfThreads);
+                long flushBytes = Long.getLong("mapreduce.pipeline.flushBytes", 1L << 20);
+                for (int i = 0; i < numberOfThreads; i++) {
+                    workers[i].pipelineTo(workers, partitioner, flushBytes);
+                }
+                for (int i = 0; i < numberOfThreads; i++) {
+                    receivers[i] = new Thread(workers[i]::receive);
+                    receivers[i].start();
+                }
+            }
+            for (int i = 0; i < numberOfThreads; i++) {
+                threads[i] = new Thread(workers[i]);
+                threads[i].start();
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+            for (Thread t : receivers) {
+                t.join();
+            }
+        }
+        if (caching) {
+            addBack(workers, cache, mapKeys, fileCounts, cachedKeys, metrics);
+        }
+        return workers;
+    }
 
-        for (int i = 0; i < numberOfThreads; i++) {
-            int start = i * chunkSize;
-            int end = (i == numberOfThreads - 1) ? totalLines : (i + 1) * chunkSize;
-            List<String> chunk = allLines.subList(start, end);
-            workers[i] = new ChunkWordFrequencyThread(chunk, i, numberOfThreads);
-            threads[i] = new Thread(workers[i]);
+    /**
+     * Per-file mode, after the map: worker i takes files i, i + n, ... The counts of a mapped
+     * file are gathered from every thread, cached, and added to the worker's counter, the
+     * counts of a cached file are loaded into it; then the worker samples its counts.
+     */
+    private static void addBack(ChunkWordFrequencyThread[] workers, ResultCache cache, List<ResultCache.Key> mapKeys,
+                                List<List<SpillingCounter>> fileCounts, List<ResultCache.Key> cachedKeys,
+                                Metrics metrics) throws IOException, InterruptedException {
+        int n = workers.length;
+        // Incomplete counts must not be cached
+        boolean failed = false;
+        for (ChunkWordFrequencyThread w : workers) {
+            failed |= w.mapFailed();
+        }
+        boolean store = !failed;
+        AtomicLong storedBytes = new AtomicLong();
+        AtomicReference<IOException> error = new AtomicReference<>();
+        Thread[] threads = new Thread[n];
+        for (int i = 0; i < n; i++) {
+            int id = i;
+            threads[i] = new Thread(() -> {
+                SpillingCounter into = workers[id].getWordFrequency();
+                try {
+                    for (int f = id; f < mapKeys.size(); f += n) {
+                        SpillingCounter counts = new SpillingCounter(SpillingCounter.budgetFromSystemProperty() / n,
+                                SpillingCounter.spillDirFromSystemProperty());
+                        for (SpillingCounter part : fileCounts.get(f)) {
+                            counts.addAll(part);
+                        }
+                        if (store) {
+                            try {
+                                storedBytes.addAndGet(cache.store(mapKeys.get(f), counts));
+                            } catch (IOException | UncheckedIOException e) {
+                                System.err.println("Cannot cache " + mapKeys.get(f) + ": " + e.getMessage());
+                            }
+                        }
+                        into.addAll(counts);
+                    }
+                    for (int f = id; f < cachedKeys.size(); f += n) {
+                        if (!cache.load(cachedKeys.get(f), into)) {
+                            throw new IOException("Cache entry of " + cachedKeys.get(f) + " is gone");
+                        }
+                    }
+                    workers[id].sample();
+                } catch (IOException | UncheckedIOException e) {
+                    error.compareAndSet(null, e instanceof IOException ? (IOException) e : ((UncheckedIOException) e).getCause());
+                }
+            });
             threads[i].start();
         }
         for (Thread t : threads) {
             t.join();
         }
-        long endMapTime = System.currentTimeMillis();
-        System.out.println("MAP FINISHED");
-        System.out.println("Mapping time: " + (endMapTime - startMapTime) + " ms");
+        metrics.increment("cache.storedBytes", storedBytes.get());
+        if (error.get() != null) {
+            throw error.get();
+        }
+    }
 
-        // ------------ SHUFFLE PHASE ------------
-        long startShuffleTime = System.currentTimeMillis();
-        // 1. Master sends list of workers to each worker
+    private static List<String> readAllLines(List<Path> inputs) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (Path input : inputs) {
+            lines.addAll(InputFormat.of(input).readAllLines(input));
+        }
+        return lines;
+    }
+
+    /**
+     * Shuffle phase: after map, route every word to the worker that reduces it.
+     * Throws an IOException if a worker lost keys on a spill error.
+     */
+    public static void shuffle(ChunkWordFrequencyThread[] workers) throws IOException, InterruptedException {
+        int numberOfThreads = workers.length;
+        // 1. Master builds the partitioning plan from the map-side samples and sends it,
+        //    with the list of workers, to each worker
+        List<Partitioner.Sampler> samples = new ArrayList<>();
+        for (ChunkWordFrequencyThread w : workers) {
+            samples.add(w.getSampler());
+        }
+        Partitioner partitioner = Partitioner.fromSystemProperty(samples, numberOfThreads);
         for (ChunkWordFrequencyThread w : workers) {
             w.setWorkersRef(workers);
+            w.setPartitioner(partitioner);
         }
-        // 2. Launch shuffle threads
+        // 2. Launch shuffle threads: each one fills its row of buffers, waits for the others,
+        //    then merges the column addressed to it
+        CyclicBarrier shuffleBarrier = new CyclicBarrier(numberOfThreads);
         Thread[] shuffleThreads = new Thread[numberOfThreads];
         for (int i = 0; i < numberOfThreads; i++) {
             final int idx = i;
             shuffleThreads[i] = new Thread(() -> {
                 workers[idx].prepareShuffle();
+                try {
+                    shuffleBarrier.await();
+                } catch (InterruptedException | BrokenBarrierException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
                 workers[idx].executeShuffle();
             });
             shuffleThreads[i].start();
@@ -59,33 +459,47 @@ public class MapReduce {
         for (Thread t : shuffleThreads) {
             t.join();
         }
-        long endShuffleTime = System.currentTimeMillis();
-        System.out.println("SHUFFLE FINISHED");
-        System.out.println("Shuffle time: " + (endShuffleTime - startShuffleTime) + " ms");
+        checkShuffle(workers);
+    }
 
-        // ------------ REDUCE PHASE ------------
-        long startReduceTime = System.currentTimeMillis();
-        Map<String, Integer> finalFreq = new HashMap<>();
-        for (ChunkWordFrequencyThread w : workers) {
-            for (Map.Entry<String, Integer> entry : w.getReceivedData().entrySet()) {
-                finalFreq.merge(entry.getKey(), entry.getValue(), Integer::sum);
+    /**
+     * An incomplete partition would silently give wrong counts: fail the job instead.
+     */
+    private static void checkShuffle(ChunkWordFrequencyThread[] workers) throws IOException {
+        for (int i = 0; i < workers.length; i++) {
+            if (workers[i].shuffleFailed()) {
+                throw new IOException("Shuffle failed in worker " + i + ", its partition is incomplete");
             }
         }
-        long endReduceTime = System.currentTimeMillis();
-        System.out.println("REDUCE FINISHED");
-        System.out.println("Reduce time: " + (endReduceTime - startReduceTime) + " ms");
-        // Print results
-        StringBuilder sb = new StringBuilder();
-        sb.append("Top 20 words: \n");
-        finalFreq.entrySet().stream()
-                .sorted((e1, e2) -> e2.getValue().compareTo(e1.getValue()))
-                .limit(20)
-                .forEach(e -> sb.append(e.getKey())
-                        .append(": ")
-                        .append(e.getValue())
-                        .append("\n"));
-        System.out.print(sb.toString());
-        long endTime = System.currentTimeMillis();
-        System.out.println("MapReduce on file completed in " + (endTime - startTime) + " ms");
     }
-}
\ No newline at end of file
+
+    /**
+     * Reduce phase: after shuffle, the topK most frequent words over all workers.
+     * Throws an IOException if a worker could not read its whole partition.
+     */
+    public static List<WordCount> reduce(ChunkWordFrequencyThread[] workers, int topK)
+            throws IOException, InterruptedException {
+        int numberOfThreads = workers.length;
+        // Partitions are disjoint: each worker computes its local top-K in parallel,
+        // the master only merges numberOfThreads lists of K entries
+        Thread[] reduceThreads = new Thread[numberOfThreads];
+        for (int i = 0; i < numberOfThreads; i++) {
+            final int idx = i;
+            reduceThreads[i] = new Thread(() -> workers[idx].reduce(topK));
+            reduceThreads[i].start();
+        }
+        List<List<WordCount>> partialTops = new ArrayList<>();
+        WordCounter hotTotals = new WordCounter(16);
+        for (int i = 0; i < numberOfThreads; i++) {
+            reduceThreads[i].join();
+            if (workers[i].reduceFailed()) {
+                throw new IOException("Reduce failed in worker " + i + ", its top-k is incomplete");
+            }
+            partialTops.add(workers[i].getTopK());
+            hotTotals.addAll(workers[i].getHotPartials());
+        }
+        // Hot keys were split over several workers: sum their partial counts
+        partialTops.add(TopK.of(hotTotals, topK));
+        return TopK.merge(partialTops, topK);
+    }
+}
@@ -0,0 +1,179 @@
+package mapreduce;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Pull-based map task scheduling with speculative execution.
+ *
+ * The input is cut into many more tasks than workers. A worker asks for a task
+ * whenever it is free and gets the next pending one; once nothing is pending,
+ * it gets a backup copy of the slowest running task instead (one that has been
+ * running for more than speculationFactor times the mean task duration). The
+ * first attempt to complete wins, the other attempts are to be cancelled.
+ * A failed attempt puts its task back in the queue; failures are counted per
+ * task so that the caller can give up on a task that keeps failing.
+ *
+ * W is the master's handle on a worker. Not thread-safe: meant to be driven by
+ * the master's single event loop.
+ */
+public final class MapTaskScheduler<W> {
+
+    private static final class Attempt<W> {
+        final W worker;
+        final long startNanos;
+
+        Attempt(W worker, long startNanos) {
+            this.worker = worker;
+            this.startNanos = startNanos;
+        }
+    }
+
+    private final Deque<Integer> pending = new ArrayDeque<>();
+    private final List<List<Attempt<W>>> running = new ArrayList<>();
+    private final boolean[] done;
+    private final int[] failures;
+    // Workers on which each task has failed, allocated on its first failure
+    private final List<Set<W>> failedOn = new ArrayList<>();
+    private final double speculationFactor;
+    private int doneCount;
+    private long completedNanos;
+    private int speculated;
+
+    public MapTaskScheduler(int taskCount, double speculationFactor) {
+        this.done = new boolean[taskCount];
+        this.failures = new int[taskCount];
+        this.speculationFactor = speculationFactor;
+        for (int i = 0; i < taskCount; i++) {
+            pending.add(i);
+            running.add(new ArrayList<>(2));
+            failedOn.add(null);
+        }
+    }
+
+    /**
+     * Task to run on a free worker, or -1 if it should stay idle for now.
+     */
+    public int assign(W worker, long nowNanos) {
+        Integer task = pending.poll();
+        if (task == null) {
+            task = speculationCandidate(worker, nowNanos);
+            if (task == null) {
+                return -1;
+            }
+            speculated++;
+        }
+        running.get(task).add(new Attempt<>(worker, nowNanos));
+        return task;
+    }
+
+    /**
+     * Record that worker finished task. Returns the workers running other attempts of the
+     * task (to cancel), or null if another attempt already won and this result must be dropped.
+     */
+    public List<W> complete(int task, W worker, long nowNanos) {
+        List<Attempt<W>> attempts = running.get(task);
+        Attempt<W> mine = null;
+        for (Attempt<W> a : attempts) {
+            if (a.worker == worker) {
+                mine = a;
+            }
+        }
+        if (done[task] || mine == null) {
+            attempts.remove(mine);
+            return null;
+        }
+        done[task] = true;
+        doneCount++;
+        completedNanos += nowNanos - mine.startNanos;
+        List<W> losers = new ArrayList<>();
+        for (Attempt<W> a : attempts) {
+            if (a != mine) {
+                losers.add(a.worker);
+            }
+        }
+        attempts.clear();
+        return losers;
+    }
+
+    /**
+     * Forget every attempt of a worker (cancelled or gone); tasks left without attempts are pending again.
+     */
+    public void release(W worker) {
+        for (int task = 0; task < running.size(); task++) {
+            List<Attempt<W>> attempts = running.get(task);
+            if (attempts.removeIf(a -> a.worker == worker) && attempts.isEmpty() && !done[task]) {
+                pending.addFirst(task);
+            }
+        }
+    }
+
+    /**
+     * Record that the attempt of worker on task failed; the task is pending again if it has
+     * no other attempt. Returns the number of failures of the task so far, 0 if it is done.
+     */
+    public int fail(int task, W worker) {
+        List<Attempt<W>> attempts = running.get(task);
+        attempts.removeIf(a -> a.worker == worker);
+        if (done[task]) {
+            return 0;
+        }
+        if (attempts.isEmpty() && !pending.contains(task)) {
+            pending.addFirst(task);
+        }
+        if (failedOn.get(task) == null) {
+            failedOn.set(task, new HashSet<>());
+        }
+        failedOn.get(task).add(worker);
+        return ++failures[task];
+    }
+
+    /**
+     * Number of distinct workers on which task has failed.
+     */
+    public int failedWorkerCount(int task) {
+        Set<W> workers = failedOn.get(task);
+        return workers == null ? 0 : workers.size();
+    }
+
+    public boolean isFinished() {
+        return doneCount == done.length;
+    }
+
+    public int taskCount() {
+        return done.length;
+    }
+
+    /**
+     * Number of speculative backup attempts launched so far.
+     */
+    public int speculatedCount() {
+        return speculated;
+    }
+
+    private Integer speculationCandidate(W worker, long nowNanos) {
+        if (doneCount == 0) {
+            return null;
+        }
+        long threshold = (long) (speculationFactor * completedNanos / doneCount);
+        Integer slowest = null;
+        long slowestElapsed = threshold;
+        for (int task = 0; task < running.size(); task++) {
+            List<Attempt<W>> attempts = running.get(task);
+            // Only one backup per task, never on the worker already running it
+            if (done[task] || attempts.size() != 1 || attempts.get(0).worker == worker) {
+                continue;
+            }
+            long elapsed = nowNanos - attempts.get(0).startNanos;
+            if (elapsed > slowestElapsed) {
+                slowest = task;
+                slowestElapsed = elapsed;
+            }
+        }
+        return slowest;
+    }
+}
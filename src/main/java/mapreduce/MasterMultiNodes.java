@@ -2,46 +2,174 @@ package mapreduce;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.stream.Stream;
 
 public class MasterMultiNodes {
+    private static final long SCHEDULER_TICK_MS = 100;
+    private static final long PROGRESS_LOG_MS = 10000;
     private final int port = 5000;          // Port d'écoute fixe
-    private final String textsPath;          // Chemin vers un dossier ou fichier .wet
+    private final String textsPath;          // Fichier, dossier ou motif glob des fichiers .wet
+    // Comptage approximatif (-Dmapreduce.approximate=true) : seul le top K est calculé
+    private final boolean approximate = HeavyHitters.enabledBySystemProperty();
+    // Taille du top K renvoyé au Master, et dossier du résultat complet (aucun par défaut)
+    private final int topK = Integer.getInteger("mapreduce.topK", 20);
+    private final String outputDir = System.getProperty("mapreduce.output");
+    // Map et shuffle pipelinés (-Dmapreduce.pipeline=true) : chaque tâche validée part aussitôt vers
+    // les réducteurs, partitionnée par hachage faute de statistiques avant la fin du map
+    private final boolean pipelined = Boolean.getBoolean("mapreduce.pipeline") && !approximate;
+    // Un Worker silencieux (ni signal ni HEARTBEAT) depuis ce délai est considéré comme mort
+    private final long heartbeatTimeoutMs = Long.getLong("mapreduce.heartbeatTimeoutMs", 10000);
     private final List<WorkerHandler> workers = new CopyOnWriteArrayList<>();
-    private final ExecutorService exec = Executors.newCachedThreadPool();
-    private ServerSocket server;            // Serveur principal
+    // Workers du job, figés à la fin du MAP : chacun détient une partie des sorties map
+    private List<WorkerHandler> jobWorkers = Collections.emptyList();
+    // Signaux de tous les Workers, dans leur ordre d'arrivée
+    private final BlockingQueue<Signal> events = new LinkedBlockingQueue<>();
+    // Plan de contrôle : un seul thread et un Selector pour toutes les connexions des Workers
+    private Selector selector;
+    private ServerSocketChannel server;     // Serveur principal
+    // Workers ayant des commandes à écrire, pris en charge par la boucle au prochain réveil
+    private final Queue<WorkerHandler> pendingWrites = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+    private Thread controlPlane;
 
     public MasterMultiNodes(String textsPath) {
         this.textsPath = textsPath;
     }
 
     /**
-     * Démarre le serveur Master et accepte les connexions des Workers.
+     * Démarre le serveur Master et la boucle d'événements qui accepte les connexions des Workers,
+     * lit leurs signaux, écrit les commandes et surveille leurs heartbeats.
      */
     public void start() {
         try {
-            server = new ServerSocket(port);
+            selector = Selector.open();
+            server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(port));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
             System.out.println("Master listening on port " + port);
         } catch (IOException e) {
             System.err.println("Failed to start Master on port " + port + ": " + e.getMessage());
             return;
         }
-        exec.submit(() -> {
-            while (!Thread.currentThread().isInterrupted()) {
+        controlPlane = new Thread(this::eventLoop, "control-plane");
+        controlPlane.setDaemon(true);
+        controlPlane.start();
+    }
+
+    private void eventLoop() {
+        long tick = Math.max(10, Math.min(1000, heartbeatTimeoutMs / 4));
+        while (running) {
+            try {
+                selector.select(tick);
+            } catch (IOException e) {
+                System.err.println("Control plane error: " + e.getMessage());
+                break;
+            }
+            for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+                SelectionKey key = it.next();
+                it.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+                WorkerHandler w = (WorkerHandler) key.attachment();
                 try {
-                    Socket sock = server.accept();
-                    WorkerHandler handler = new WorkerHandler(sock);
-                    workers.add(handler);
-                    exec.submit(handler);
+                    if (key.isReadable()) {
+                        w.read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        w.write();
+                    }
                 } catch (IOException e) {
-                    System.err.println("Error accepting worker connection: " + e.getMessage());
-                    if (server.isClosed()) break;
+                    System.err.println("Worker disconnected: " + w + " (" + e.getMessage() + ")");
+                    close(w);
+                }
+            }
+            // Commandes déposées par le pipeline depuis le dernier réveil
+            WorkerHandler w;
+            while ((w = pendingWrites.poll()) != null) {
+                if (w.key.isValid()) {
+                    w.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            }
+            long now = System.currentTimeMillis();
+            for (WorkerHandler h : workers) {
+                if (now - h.lastSeen > heartbeatTimeoutMs) {
+                    System.err.println("Worker " + h + " missed its heartbeats for " + (now - h.lastSeen) + " ms");
+                    close(h);
                 }
             }
-        });
+        }
+        // Seule la boucle touche au Selector : c'est elle qui ferme tout en sortant
+        for (WorkerHandler w : workers) {
+            try {
+                w.channel.close();
+            } catch (IOException ignored) {}
+        }
+        try {
+            server.close();
+            selector.close();
+        } catch (IOException ignored) {}
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel = server.accept();
+            if (channel == null) {
+                return;
+            }
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            WorkerHandler handler = new WorkerHandler(channel, this);
+            handler.key = channel.register(selector, SelectionKey.OP_READ, handler);
+            workers.add(handler);
+        } catch (IOException e) {
+            System.err.println("Error accepting worker connection: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Ferme la connexion d'un Worker et le retire du job.
+     */
+    private void close(WorkerHandler w) {
+        if (!workers.remove(w)) {
+            return;
+        }
+        w.key.cancel();
+        try {
+            w.channel.close();
+        } catch (IOException ignored) {}
+        events.offer(new Signal(w, "DISCONNECTED"));
+    }
+
+    /**
+     * Arrête la boucle d'événements et ferme toutes les connexions.
+     */
+    private void shutdown() {
+        running = false;
+        if (controlPlane == null) {
+            return;
+        }
+        selector.wakeup();
+        try {
+            controlPlane.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     /**
@@ -63,97 +191,389 @@ public class MasterMultiNodes {
             return;
         }
 
-        // Préparation du répertoire de splits
-        Path splitsDir = Paths.get("splits");
+        // Découpage en plages d'octets alignées sur les fins de ligne : seuls quelques octets
+        // autour de chaque point de coupe sont lus, le fichier n'est ni compté ni réécrit.
+        // Un fichier WET est coupé sur les débuts d'enregistrement, un .warc.wet.gz sur les
+        // débuts de membre gzip. Beaucoup plus de tâches que de Workers, distribuées à la demande.
+        // Le nombre de plages d'un fichier ne dépend que de sa taille : ajouter un fichier au job
+        // ne déplace pas les coupes des autres, dont les tâches restent dans le cache des Workers.
+        long splitBytes = Math.max(1, Long.getLong("mapreduce.splitBytes", 8 << 20));
+        List<MapTask> tasks = new ArrayList<>();
+        Set<InputFormat> formats = EnumSet.noneOf(InputFormat.class);
+        List<Path> inputs;
         try {
-            if (Files.exists(splitsDir)) {
-                Files.walk(splitsDir)
-                        .sorted(Comparator.reverseOrder())
-                        .map(Path::toFile)
-                        .forEach(File::delete);
+            inputs = InputFiles.resolve(textsPath);
+            for (Path input : inputs) {
+                Path inputFile = input.toAbsolutePath();
+                try (FileChannel channel = FileChannel.open(inputFile, StandardOpenOption.READ)) {
+                    InputFormat format = InputFormat.of(channel);
+                    formats.add(format);
+                    int parts = (int) Math.max(1, (channel.size() + splitBytes - 1) / splitBytes);
+                    long[] bounds = format.split(channel, parts);
+                    for (int i = 0; i < parts; i++) {
+                        tasks.add(new MapTask(inputFile.toString(), bounds[i], bounds[i + 1] - bounds[i]));
+                    }
+                }
             }
-            Files.createDirectories(splitsDir);
         } catch (IOException e) {
-            System.err.println("Cannot prepare splits directory: " + e.getMessage());
+            System.err.println("Error splitting " + textsPath + ": " + e.getMessage());
             return;
         }
 
-        // Comptage du nombre de lignes total dans le .wet
-        long totalLines = 0;
-        Path inputFile = Paths.get(textsPath);
-        try (BufferedReader countReader = Files.newBufferedReader(inputFile)) {
-            while (countReader.readLine() != null) totalLines++;
-        } catch (IOException e) {
-            System.err.println("Error counting lines in " + textsPath + ": " + e.getMessage());
+        // Laisser le temps aux Workers de se connecter
+        Thread.sleep(2000);
+
+        if (workers.size() < nWorkers) {
+            System.err.println("Only " + workers.size() + " of " + nWorkers + " workers connected");
             return;
         }
 
-        // Calcul des tailles de splits
-        long base = totalLines / nWorkers;
-        long rem = totalLines % nWorkers;
-
-        // Création des fichiers de splits
-        List<String> splits = new ArrayList<>();
-        try (BufferedReader reader = Files.newBufferedReader(inputFile)) {
-            for (int i = 0; i < nWorkers; i++) {
-                long linesToWrite = base + (i < rem ? 1 : 0);
-                Path splitFile = splitsDir.resolve("split" + i + ".wet");
-                try (BufferedWriter writer = Files.newBufferedWriter(splitFile)) {
-                    for (long j = 0; j < linesToWrite; j++) {
-                        String line = reader.readLine();
-                        if (line == null) break;
-                        writer.write(line);
-                        writer.newLine();
-                    }
-                }
-                splits.add(splitFile.toString());
+        // Rapport JSON du job : paramètres, durées des phases, métriques envoyées par chaque Worker
+        JobReport report = new JobReport("MasterMultiNodes");
+        report.parameter("input", textsPath);
+        report.parameter("files", inputs.size());
+        report.parameter("inputFormat", formats);
+        report.parameter("workers", nWorkers);
+        report.parameter("tasks", tasks.size());
+        report.parameter("splitBytes", splitBytes);
+        report.parameter("partitioner", System.getProperty("mapreduce.partitioner", "skew"));
+        report.parameter("approximate", approximate);
+        report.parameter("pipeline", pipelined);
+        report.parameter("topK", topK);
+        if (outputDir != null) {
+            report.parameter("output", Paths.get(outputDir).toAbsolutePath());
+        }
+        Metrics metrics = report.master();
+
+        // MAP phase : les Workers demandent des tâches (MAP <id> <offset> <length> <mode> <path>) quand ils
+        // sont libres ; en fin de phase, les tâches les plus lentes sont dupliquées sur les Workers
+        // inoccupés et la première copie terminée l'emporte
+        long t0 = System.currentTimeMillis();
+        if (!runMapPhase(tasks, metrics)) {
+            return;
+        }
+        // La sortie map d'un Worker perdu n'existe plus nulle part : le job ne peut pas continuer
+        if (workers.size() < nWorkers) {
+            System.err.println("Lost " + (nWorkers - workers.size()) + " workers during MAP, aborting job");
+            return;
+        }
+        jobWorkers = new ArrayList<>(workers);
+        metrics.recordNanos("phase.map", (System.currentTimeMillis() - t0) * 1000000);
+        System.out.println("MAP FINISHED in " + (System.currentTimeMillis() - t0) + " ms");
+        if (approximate) {
+            runSketchPhase(report);
+            return;
+        }
+
+        // SHUFFLE phase : plan de partitionnement équilibré, construit à partir des statistiques
+        // de clés de chaque Worker, puis diffusé avec la commande SHUFFLE
+        long t1 = System.currentTimeMillis();
+        Partitioner partitioner;
+        if (pipelined || "hash".equals(System.getProperty("mapreduce.partitioner", "skew"))) {
+            partitioner = Partitioner.hash(nWorkers);
+        } else {
+            broadcast("SAMPLE", Collections.emptyList());
+            List<Partitioner.Sampler> samples = new ArrayList<>();
+            Map<WorkerHandler, String> sampled = waitForPhase("SAMPLE");
+            if (sampled == null) {
+                return;
             }
-        } catch (IOException e) {
-            System.err.println("Error creating splits: " + e.getMessage());
+            for (String sample : sampled.values()) {
+                samples.add(Partitioner.Sampler.decode(sample));
+            }
+            partitioner = Partitioner.plan(samples, nWorkers);
+            System.out.println("Partitioning plan: " + partitioner.hotKeys().size() + " hot keys split across reducers");
+        }
+        broadcast("SHUFFLE", Collections.singletonList(partitioner.encode()));
+        if (waitForPhase("SHUFFLE_DONE", "SHUFFLE_FAILED") == null) {
             return;
         }
+        metrics.recordNanos("phase.shuffle", (System.currentTimeMillis() - t1) * 1000000);
+        System.out.println("SHUFFLE FINISHED in " + (System.currentTimeMillis() - t1) + " ms");
 
-        // Laisser le temps aux Workers de se connecter
-        Thread.sleep(2000);
+        // REDUCE phase : chaque Worker renvoie son top K local et ses statistiques ; les clés chaudes,
+        // réparties sur plusieurs Workers, sont sommées ici. Le résultat complet n'est écrit, par
+        // chaque Worker dans <output>/part-NNNNN, que si -Dmapreduce.output=<dossier> est donné.
+        long t2 = System.currentTimeMillis();
+        List<String> reduceArgs = new ArrayList<>(Collections.singletonList(Integer.toString(topK)));
+        if (outputDir != null) {
+            reduceArgs.add(outputDir);
+        }
+        broadcast("REDUCE", reduceArgs);
+        Map<WorkerHandler, String> reduced = waitForPhase("REDUCE_DONE", "REDUCE_FAILED");
+        if (reduced == null) {
+            return;
+        }
+        List<List<WordCount>> partialTops = new ArrayList<>();
+        WordCounter hotTotals = new WordCounter(16);
+        long distinct = 0;
+        long total = 0;
+        for (String payload : reduced.values()) {
+            // <clés> <total> <top> <partiels des clés chaudes>
+            String[] fields = payload.split(" ");
+            distinct += Long.parseLong(fields[0]);
+            total += Long.parseLong(fields[1]);
+            partialTops.add(parseCounts(fields[2]));
+            for (WordCount wc : parseCounts(fields[3])) {
+                hotTotals.add(wc.getWord(), wc.getCount());
+            }
+        }
+        distinct += hotTotals.size();
+        partialTops.add(TopK.of(hotTotals, topK));
+        printTop(TopK.merge(partialTops, topK));
+        System.out.println(distinct + " distinct words, " + total + " words in total");
+        metrics.increment("result.distinctWords", distinct);
+        metrics.increment("result.words", total);
+        if (outputDir != null) {
+            writeHotTotals(hotTotals);
+        }
+        metrics.recordNanos("phase.reduce", (System.currentTimeMillis() - t2) * 1000000);
+        System.out.println("REDUCE FINISHED in " + (System.currentTimeMillis() - t2) + " ms");
 
-        // MAP phase
-        long t0 = System.currentTimeMillis();
-        broadcast("MAP", splits);
-        waitForPhase("MAP_DONE");
-        System.out.println("MAP FINISHED in " + (System.currentTimeMillis() - t0) + " ms");
+        // Chaque Worker envoie ses métriques juste après REDUCE_DONE
+        Map<WorkerHandler, String> nodeMetrics = waitForPhase("METRICS");
+        if (nodeMetrics != null) {
+            for (Map.Entry<WorkerHandler, String> e : nodeMetrics.entrySet()) {
+                report.node(e.getKey().toString(), e.getValue());
+            }
+        }
+        report.write(JobReport.pathFromSystemProperty());
+    }
 
-        // SHUFFLE phase
+    /**
+     * Mode approximatif : chaque Worker envoie son résumé (Count-Min Sketch + clés lourdes),
+     * quelques kilo-octets au lieu de son vocabulaire ; le Master les fusionne et garde le top K.
+     */
+    private void runSketchPhase(JobReport report) throws InterruptedException {
+        Metrics metrics = report.master();
         long t1 = System.currentTimeMillis();
-        broadcast("SHUFFLE", Collections.emptyList());
-        waitForPhase("SHUFFLE_DONE");
+        broadcast("SKETCH", Collections.emptyList());
+        Map<WorkerHandler, String> sketches = waitForPhase("SKETCH");
+        if (sketches == null) {
+            return;
+        }
+        HeavyHitters merged = null;
+        for (String encoded : sketches.values()) {
+            try {
+                HeavyHitters summary = HeavyHitters.decode(encoded);
+                metrics.increment("sketch.bytesReceived", encoded.length());
+                if (merged == null) {
+                    merged = summary;
+                } else {
+                    merged.addAll(summary);
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("Invalid summary from a worker, aborting job: " + e.getMessage());
+                return;
+            }
+        }
+        metrics.recordNanos("phase.shuffle", (System.currentTimeMillis() - t1) * 1000000);
         System.out.println("SHUFFLE FINISHED in " + (System.currentTimeMillis() - t1) + " ms");
 
-        // REDUCE phase
         long t2 = System.currentTimeMillis();
-        broadcast("REDUCE", Collections.emptyList());
-        waitForPhase("REDUCE_DONE");
+        printTop(merged.top(topK));
+        metrics.increment("approx.errorBound", merged.errorBound());
+        System.out.println("Approximate counts (" + merged + "), overestimated by at most " + merged.errorBound());
+        metrics.recordNanos("phase.reduce", (System.currentTimeMillis() - t2) * 1000000);
         System.out.println("REDUCE FINISHED in " + (System.currentTimeMillis() - t2) + " ms");
 
-        // Arrêt du serveur
-        try { server.close(); } catch (IOException ignored) {}
-        exec.shutdown();
+        Map<WorkerHandler, String> nodeMetrics = waitForPhase("METRICS");
+        if (nodeMetrics != null) {
+            for (Map.Entry<WorkerHandler, String> e : nodeMetrics.entrySet()) {
+                report.node(e.getKey().toString(), e.getValue());
+            }
+        }
+        report.write(JobReport.pathFromSystemProperty());
+    }
+
+    /**
+     * "mot=compte,mot=compte", ou "-" pour une liste vide.
+     */
+    private static List<WordCount> parseCounts(String field) {
+        List<WordCount> counts = new ArrayList<>();
+        if (!field.equals("-")) {
+            for (String entry : field.split(",")) {
+                String[] kv = entry.split("=");
+                counts.add(new WordCount(kv[0], Long.parseLong(kv[1])));
+            }
+        }
+        return counts;
+    }
+
+    private void printTop(List<WordCount> top) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Top ").append(topK).append(" words: \n");
+        for (WordCount wc : top) {
+            sb.append(wc.getWord()).append(": ").append(wc.getCount()).append("\n");
+        }
+        System.out.print(sb);
+    }
+
+    /**
+     * Les totaux des clés chaudes ne sont connus que du Master : écrits à côté des parts des Workers.
+     */
+    private void writeHotTotals(WordCounter hotTotals) {
+        Path file = Paths.get(outputDir, "part-hot");
+        try {
+            Files.createDirectories(file.getParent());
+            try (Writer w = Files.newBufferedWriter(file, StandardCharsets.ISO_8859_1)) {
+                for (int i = 0; i < hotTotals.size(); i++) {
+                    w.append(hotTotals.word(i)).append('\t').append(Long.toString(hotTotals.count(i))).append('\n');
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Cannot write " + file + ": " + e.getMessage());
+        }
     }
 
     private void broadcast(String cmd, List<String> args) {
-        for (WorkerHandler w : workers) {
+        for (WorkerHandler w : jobWorkers) {
             w.sendCommand(cmd, args);
         }
     }
 
-    private void waitForPhase(String doneSignal) throws InterruptedException {
-        for (WorkerHandler w : workers) {
-            w.waitFor(doneSignal);
+    /**
+     * Renvoie false si tous les Workers ont été perdus avant la fin de la phase, ou si une tâche
+     * a échoué sur chacun des Workers ou plus de mapreduce.maxTaskAttempts fois.
+     */
+    private boolean runMapPhase(List<MapTask> tasks, Metrics metrics) throws InterruptedException {
+        double speculationFactor = Double.parseDouble(System.getProperty("mapreduce.speculationFactor", "1.5"));
+        int maxTaskAttempts = Integer.getInteger("mapreduce.maxTaskAttempts", 4);
+        MapTaskScheduler<WorkerHandler> scheduler = new MapTaskScheduler<>(tasks.size(), speculationFactor);
+        Deque<WorkerHandler> idle = new ArrayDeque<>();
+        while (!scheduler.isFinished()) {
+            Signal ev = events.poll(SCHEDULER_TICK_MS, TimeUnit.MILLISECONDS);
+            long now = System.nanoTime();
+            if (ev != null) {
+                String[] parts = ev.text.split(" ");
+                switch (parts[0]) {
+                    case "TASK_REQUEST":
+                        if (!dispatch(scheduler, ev.worker, tasks, now)) {
+                            idle.add(ev.worker);
+                        }
+                        break;
+                    case "MAP_DONE":
+                        int task = Integer.parseInt(parts[1]);
+                        List<WorkerHandler> losers = scheduler.complete(task, ev.worker, now);
+                        if (losers == null) {
+                            ev.worker.sendCommand("ABORT", Collections.singletonList(parts[1]));
+                        } else {
+                            ev.worker.sendCommand("COMMIT", Collections.singletonList(parts[1]));
+                            for (WorkerHandler loser : losers) {
+                                loser.sendCommand("CANCEL", Collections.singletonList(parts[1]));
+                            }
+                        }
+                        break;
+                    case "MAP_FAILED":
+                        metrics.increment("map.failed");
+                        int failed = Integer.parseInt(parts[1]);
+                        int failures = scheduler.fail(failed, ev.worker);
+                        // Une tâche qui échoue partout (fichier illisible, entrée corrompue) ne réussira jamais
+                        if (failures > 0 && (failures >= maxTaskAttempts
+                                || scheduler.failedWorkerCount(failed) >= workers.size())) {
+                            System.err.println("Map task " + failed + " failed " + failures + " times on "
+                                    + scheduler.failedWorkerCount(failed) + " workers, aborting job");
+                            return false;
+                        }
+                        System.err.println("Map task " + failed + " failed on " + ev.worker + ", rescheduling");
+                        break;
+                    case "DISCONNECTED":
+                        metrics.increment("workers.lost");
+                        scheduler.release(ev.worker);
+                        idle.remove(ev.worker);
+                        if (workers.isEmpty()) {
+                            System.err.println("All workers lost during MAP, aborting job");
+                            return false;
+                        }
+                        break;
+                }
+            }
+            // Des tâches ont pu revenir en attente ou devenir candidates à la spéculation
+            for (Iterator<WorkerHandler> it = idle.iterator(); it.hasNext(); ) {
+                if (dispatch(scheduler, it.next(), tasks, now)) {
+                    it.remove();
+                }
+            }
+        }
+        metrics.increment("map.tasks", scheduler.taskCount());
+        metrics.increment("map.speculated", scheduler.speculatedCount());
+        System.out.println(scheduler.taskCount() + " map tasks, " + scheduler.speculatedCount() + " speculative copies");
+        return true;
+    }
+
+    private boolean dispatch(MapTaskScheduler<WorkerHandler> scheduler, WorkerHandler w, List<MapTask> tasks, long now) {
+        int task = scheduler.assign(w, now);
+        if (task < 0) {
+            return false;
         }
+        MapTask t = tasks.get(task);
+        // Chemin en dernier : il peut contenir des espaces (dossiers et motifs glob)
+        w.sendCommand("MAP", Arrays.asList(Integer.toString(task), Long.toString(t.offset), Long.toString(t.length),
+                approximate ? "approx" : pipelined ? "pipe" : "exact", t.path));
+        return true;
+    }
+
+    /**
+     * Tâche map : une plage d'octets d'un des fichiers d'entrée.
+     */
+    private static final class MapTask {
+        final String path;
+        final long offset;
+        final long length;
+
+        MapTask(String path, long offset, long length) {
+            this.path = path;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Attend le signal de fin de phase de chaque Worker du job, dans l'ordre où ils arrivent.
+     * Renvoie le contenu éventuel de chaque signal ("SIGNAL:<doneSignal> <contenu>"),
+     * ou null si un Worker du job est perdu, même après avoir terminé la phase :
+     * ses partitions n'existent que chez lui.
+     */
+    private Map<WorkerHandler, String> waitForPhase(String doneSignal) throws InterruptedException {
+        return waitForPhase(doneSignal, null);
+    }
+
+    /**
+     * Comme {@link #waitForPhase(String)}, mais renvoie aussi null dès qu'un Worker du job
+     * envoie failedSignal : la phase ne peut pas aboutir chez lui.
+     */
+    private Map<WorkerHandler, String> waitForPhase(String doneSignal, String failedSignal)
+            throws InterruptedException {
+        for (WorkerHandler w : jobWorkers) {
+            if (!workers.contains(w)) {
+                System.err.println("Worker " + w + " lost before " + doneSignal + ", aborting job");
+                return null;
+            }
+        }
+        Set<WorkerHandler> remaining = new HashSet<>(jobWorkers);
+        Map<WorkerHandler, String> payloads = new HashMap<>();
+        while (!remaining.isEmpty()) {
+            Signal ev = events.poll(PROGRESS_LOG_MS, TimeUnit.MILLISECONDS);
+            if (ev == null) {
+                System.out.println("Still waiting " + doneSignal + " from " + remaining);
+            } else if (ev.text.equals(doneSignal) || ev.text.startsWith(doneSignal + " ")) {
+                remaining.remove(ev.worker);
+                payloads.put(ev.worker, ev.text.substring(Math.min(ev.text.length(), doneSignal.length() + 1)));
+            } else if (failedSignal != null && jobWorkers.contains(ev.worker)
+                    && (ev.text.equals(failedSignal) || ev.text.startsWith(failedSignal + " "))) {
+                System.err.println("Worker " + ev.worker + " reported " + ev.text + ", aborting job");
+                return null;
+            } else if (ev.text.equals("DISCONNECTED") && jobWorkers.contains(ev.worker)) {
+                System.err.println("Worker " + ev.worker + " lost during " + doneSignal + ", aborting job");
+                return null;
+            }
+        }
+        return payloads;
     }
 
     public static void main(String[] args) throws InterruptedException {
         if (args.length < 2) {
-            System.err.println("Usage: java MasterMultiNodes <wetFile> <masterIp>");
+            System.err.println("Usage: java MasterMultiNodes <wetFile|directory|glob> <masterIp>");
             return;
         }
         String textsPath = args[0];
@@ -161,44 +581,105 @@ public class MasterMultiNodes {
         System.out.println("Master IP set to " + masterIp);
         MasterMultiNodes master = new MasterMultiNodes(textsPath);
         master.start();
-        master.runPipeline();
+        try {
+            master.runPipeline();
+        } finally {
+            master.shutdown();
+        }
     }
 
-    private static class WorkerHandler implements Runnable {
-        private final Socket sock;
-        private final BufferedReader in;
-        private final PrintWriter out;
-        private final BlockingQueue<String> signals = new LinkedBlockingQueue<>();
+    private static class Signal {
+        final WorkerHandler worker;
+        final String text;
 
-        public WorkerHandler(Socket sock) throws IOException {
-            this.sock = sock;
-            this.in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-            this.out = new PrintWriter(sock.getOutputStream(), true);
+        Signal(WorkerHandler worker, String text) {
+            this.worker = worker;
+            this.text = text;
         }
+    }
 
-        @Override
-        public void run() {
-            try {
-                String line;
-                while ((line = in.readLine()) != null) {
-                    if (line.startsWith("SIGNAL:")) {
-                        signals.offer(line.substring(7));
+    /**
+     * État d'une connexion Worker, manipulé uniquement par la boucle d'événements
+     * (sauf sendCommand, qui dépose la commande et réveille la boucle).
+     */
+    private static class WorkerHandler {
+        private final SocketChannel channel;
+        private final MasterMultiNodes master;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+        private final Queue<ByteBuffer> outgoing = new ConcurrentLinkedQueue<>();
+        private SelectionKey key;
+        private volatile String name;
+        // Dernière ligne reçue (signal ou HEARTBEAT), en ms
+        private volatile long lastSeen = System.currentTimeMillis();
+
+        WorkerHandler(SocketChannel channel, MasterMultiNodes master) throws IOException {
+            this.channel = channel;
+            this.master = master;
+            this.name = channel.getRemoteAddress().toString();
+        }
+
+        /**
+         * Lit ce qui est disponible et traite chaque ligne complète.
+         */
+        void read() throws IOException {
+            int n;
+            while ((n = channel.read(readBuffer)) > 0) {
+                readBuffer.flip();
+                while (readBuffer.hasRemaining()) {
+                    byte b = readBuffer.get();
+                    if (b == '\n') {
+                        handleLine(new String(line.toByteArray(), StandardCharsets.UTF_8));
+                        line.reset();
+                    } else if (b != '\r') {
+                        line.write(b);
                     }
                 }
-            } catch (IOException e) {
-                System.err.println("Worker disconnected: " + e.getMessage());
+                readBuffer.clear();
+            }
+            if (n < 0) {
+                throw new EOFException("connection closed");
+            }
+        }
+
+        private void handleLine(String text) {
+            lastSeen = System.currentTimeMillis();
+            if (text.startsWith("SIGNAL:")) {
+                master.events.offer(new Signal(this, text.substring(7)));
+            } else if (text.startsWith("REGISTER ")) {
+                name = channel.socket().getInetAddress().getHostName() + ":" + text.substring(9);
+            }
+        }
+
+        /**
+         * Écrit les commandes en attente ; garde OP_WRITE tant que le socket est plein.
+         */
+        void write() throws IOException {
+            ByteBuffer buf;
+            while ((buf = outgoing.peek()) != null) {
+                channel.write(buf);
+                if (buf.hasRemaining()) {
+                    return;
+                }
+                outgoing.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            // Une commande a pu arriver entre le dernier peek et le changement d'intérêt
+            if (!outgoing.isEmpty()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
             }
         }
 
         public void sendCommand(String cmd, List<String> args) {
-            out.println(cmd + (args.isEmpty() ? "" : " " + String.join(" ", args)));
+            String text = cmd + (args.isEmpty() ? "" : " " + String.join(" ", args)) + "\n";
+            outgoing.add(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+            master.pendingWrites.add(this);
+            master.selector.wakeup();
         }
 
-        public void waitFor(String doneSignal) throws InterruptedException {
-            String sig;
-            do {
-                sig = signals.take();
-            } while (!sig.equals(doneSignal));
+        @Override
+        public String toString() {
+            return name;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,206 @@
+package mapreduce;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Small metrics registry: named counters, histograms and timers.
+ *
+ * Counters are LongAdders, cheap to bump from several threads. Histograms
+ * keep count, sum, min, max and log-linear buckets (8 per power of two, so
+ * percentiles are within 12.5%). A timer is a histogram of durations in
+ * nanoseconds, reported in milliseconds. Names are dotted paths, e.g.
+ * "map.bytes" or "shuffle.bytesSent.2".
+ *
+ * A registry is serialized as a one-line JSON object (see {@link #toJson()}),
+ * small enough to travel in a SIGNAL message, and embedded as is in the job
+ * report of the master (see {@link JobReport}).
+ */
+public final class Metrics {
+    private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Histogram> timers = new ConcurrentHashMap<>();
+
+    public void increment(String name) {
+        increment(name, 1);
+    }
+
+    public void increment(String name, long delta) {
+        counters.computeIfAbsent(name, n -> new LongAdder()).add(delta);
+    }
+
+    public long counter(String name) {
+        LongAdder c = counters.get(name);
+        return c == null ? 0 : c.sum();
+    }
+
+    /**
+     * Record a value in a histogram.
+     */
+    public void record(String name, long value) {
+        histograms.computeIfAbsent(name, n -> new Histogram()).record(value);
+    }
+
+    /**
+     * Record a duration in a timer.
+     */
+    public void recordNanos(String name, long nanos) {
+        timers.computeIfAbsent(name, n -> new Histogram()).record(nanos);
+    }
+
+    /**
+     * Record the time elapsed since startNanos (a System.nanoTime() value) in a timer.
+     */
+    public void time(String name, long startNanos) {
+        recordNanos(name, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Add every metric of other to this registry (e.g. per-thread registries into a per-process one).
+     */
+    public void addAll(Metrics other) {
+        other.counters.forEach((name, c) -> increment(name, c.sum()));
+        other.histograms.forEach((name, h) -> histograms.computeIfAbsent(name, n -> new Histogram()).addAll(h));
+        other.timers.forEach((name, h) -> timers.computeIfAbsent(name, n -> new Histogram()).addAll(h));
+    }
+
+    /**
+     * {"counters":{name:value},"histograms":{name:{count,sum,min,max,p50,p95,p99}},"timers":{name:{...Ms}}},
+     * names sorted, on a single line.
+     */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder("{\"counters\":{");
+        boolean first = true;
+        for (Map.Entry<String, LongAdder> e : new TreeMap<>(counters).entrySet()) {
+            sb.append(first ? "" : ",").append(quote(e.getKey())).append(':').append(e.getValue().sum());
+            first = false;
+        }
+        sb.append("},\"histograms\":{");
+        appendHistograms(sb, histograms, 1, "");
+        sb.append("},\"timers\":{");
+        appendHistograms(sb, timers, 1e6, "Ms");
+        return sb.append("}}").toString();
+    }
+
+    private static void appendHistograms(StringBuilder sb, Map<String, Histogram> map, double unit, String suffix) {
+        boolean first = true;
+        for (Map.Entry<String, Histogram> e : new TreeMap<>(map).entrySet()) {
+            sb.append(first ? "" : ",").append(quote(e.getKey())).append(':');
+            e.getValue().appendJson(sb, unit, suffix);
+            first = false;
+        }
+    }
+
+    static String quote(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Distribution of non-negative long values.
+     */
+    static final class Histogram {
+        private static final int SUB_BUCKETS = 8;
+        private final long[] buckets = new long[64 * SUB_BUCKETS];
+        private long count;
+        private long sum;
+        private long min = Long.MAX_VALUE;
+        private long max;
+
+        synchronized void record(long value) {
+            value = Math.max(0, value);
+            buckets[bucket(value)]++;
+            count++;
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+
+        void addAll(Histogram other) {
+            long[] otherBuckets;
+            long otherCount, otherSum, otherMin, otherMax;
+            synchronized (other) {
+                otherBuckets = other.buckets.clone();
+                otherCount = other.count;
+                otherSum = other.sum;
+                otherMin = other.min;
+                otherMax = other.max;
+            }
+            synchronized (this) {
+                for (int i = 0; i < buckets.length; i++) {
+                    buckets[i] += otherBuckets[i];
+                }
+                count += otherCount;
+                sum += otherSum;
+                min = Math.min(min, otherMin);
+                max = Math.max(max, otherMax);
+            }
+        }
+
+        // Values below SUB_BUCKETS are exact, above that each power of two is cut into SUB_BUCKETS
+        private static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int log = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (log - 3)) & (SUB_BUCKETS - 1);
+            return (log - 2) * SUB_BUCKETS + sub;
+        }
+
+        // Upper bound of the values in a bucket
+        private static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int log = bucket / SUB_BUCKETS + 2;
+            long sub = bucket % SUB_BUCKETS;
+            return ((SUB_BUCKETS + sub + 1) << (log - 3)) - 1;
+        }
+
+        synchronized long percentile(double p) {
+            long rank = (long) Math.ceil(p * count);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(max, upperBound(i));
+                }
+            }
+            return max;
+        }
+
+        synchronized void appendJson(StringBuilder sb, double unit, String suffix) {
+            sb.append("{\"count\":").append(count);
+            appendValue(sb, "sum" + suffix, sum, unit);
+            appendValue(sb, "min" + suffix, count == 0 ? 0 : min, unit);
+            appendValue(sb, "max" + suffix, max, unit);
+            appendValue(sb, "p50" + suffix, percentile(0.50), unit);
+            appendValue(sb, "p95" + suffix, percentile(0.95), unit);
+            appendValue(sb, "p99" + suffix, percentile(0.99), unit);
+            sb.append('}');
+        }
+
+        private static void appendValue(StringBuilder sb, String name, long value, double unit) {
+            sb.append(",\"").append(name).append("\":");
+            if (unit == 1) {
+                sb.append(value);
+            } else {
+                sb.append(String.format(Locale.ROOT, "%.3f", value / unit));
+            }
+        }
+    }
+}
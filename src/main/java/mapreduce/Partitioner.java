@@ -0,0 +1,300 @@
+package mapreduce;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Assigns words to reducers for the shuffle.
+ *
+ * The plain hash partitioner sends a word to hash % partitions, which with a
+ * Zipf-distributed vocabulary leaves a few reducers with most of the volume.
+ * The skew-aware plan is built from the {@link Sampler}s filled during map:
+ * word hashes are grouped into BUCKETS buckets whose load (in token bytes,
+ * count * (length + 1)) is known, and buckets are spread over the reducers
+ * heaviest first, each going to the least loaded reducer. Keys heavier than
+ * HOT_SHARE of a fair reducer share are hot: they are split over several
+ * reducers, each sender picking one replica, and the reducers' partial counts
+ * for those keys must be summed afterwards (see {@link #hotKeys()}).
+ *
+ * A plan is immutable and can be shipped to other processes with encode()/decode().
+ */
+public final class Partitioner {
+    static final int BUCKETS = 1024;
+    // Heaviest keys reported by each sampler as hot key candidates
+    static final int HOT_CANDIDATES = 64;
+    // A key is hot when its load exceeds this fraction of a fair reducer share
+    static final double HOT_SHARE = 0.5;
+
+    private final int partitions;
+    // bucket -> reducer, null for plain hash partitioning
+    private final int[] owners;
+    // hot key -> index + 1 in replicas
+    private final WordCounter hot;
+    private final int[][] replicas;
+
+    private Partitioner(int partitions, int[] owners, WordCounter hot, int[][] replicas) {
+        this.partitions = partitions;
+        this.owners = owners;
+        this.hot = hot;
+        this.replicas = replicas;
+    }
+
+    /**
+     * Plain hash partitioning: hash modulo partitions, no hot keys.
+     */
+    public static Partitioner hash(int partitions) {
+        return new Partitioner(partitions, null, new WordCounter(16), new int[0][]);
+    }
+
+    /**
+     * Partitioner selected by the mapreduce.partitioner system property: "skew" (default) builds a
+     * balanced plan from the samples, "hash" keeps plain hash partitioning.
+     */
+    public static Partitioner fromSystemProperty(List<Sampler> samples, int partitions) {
+        if ("hash".equals(System.getProperty("mapreduce.partitioner", "skew"))) {
+            return hash(partitions);
+        }
+        return plan(samples, partitions);
+    }
+
+    /**
+     * Reducer of a key (whose String-compatible hash is h) sent by the given sender.
+     */
+    public int partition(byte[] b, int off, int len, int h, int sender) {
+        if (owners == null) {
+            return (h & Integer.MAX_VALUE) % partitions;
+        }
+        if (!hot.isEmpty()) {
+            int r = (int) hot.get(b, off, len, h);
+            if (r != 0) {
+                int[] group = replicas[r - 1];
+                return group[Math.floorMod(sender, group.length)];
+            }
+        }
+        return owners[bucket(h)];
+    }
+
+    int partition(WordCounter counter, int i, int sender) {
+        return partition(counter.arena(), counter.offset(i), counter.length(i), counter.hash(i), sender);
+    }
+
+    /**
+     * Keys split over several reducers; their per-reducer counts are partial.
+     */
+    public WordCounter hotKeys() {
+        return hot;
+    }
+
+    public int partitions() {
+        return partitions;
+    }
+
+    static int bucket(int h) {
+        return WordCounter.mix(h) >>> 22;
+    }
+
+    /**
+     * Build a balanced plan from the map-side samples.
+     */
+    public static Partitioner plan(List<Sampler> samples, int partitions) {
+        long[] load = new long[BUCKETS];
+        Map<String, Long> candidates = new HashMap<>();
+        for (Sampler s : samples) {
+            for (int b = 0; b < BUCKETS; b++) {
+                load[b] += s.bucketLoad[b];
+            }
+            for (WordCount wc : s.candidates) {
+                candidates.merge(wc.getWord(), wc.getCount(), Long::sum);
+            }
+        }
+        long total = 0;
+        for (long l : load) {
+            total += l;
+        }
+        double fair = Math.max(1.0, (double) total / partitions);
+        long[] partitionLoad = new long[partitions];
+
+        // Hot keys first: split over the least loaded reducers
+        List<WordCount> hotList = new ArrayList<>();
+        for (Map.Entry<String, Long> e : candidates.entrySet()) {
+            if (partitions > 1 && e.getValue() > HOT_SHARE * fair) {
+                hotList.add(new WordCount(e.getKey(), e.getValue()));
+            }
+        }
+        hotList.sort(TopK.ORDER);
+        WordCounter hot = new WordCounter(Math.max(16, hotList.size()));
+        int[][] replicas = new int[hotList.size()][];
+        for (int k = 0; k < hotList.size(); k++) {
+            WordCount wc = hotList.get(k);
+            int r = (int) Math.min(partitions, Math.max(2, Math.ceil(wc.getCount() / (HOT_SHARE * fair))));
+            Integer[] order = leastLoaded(partitionLoad);
+            replicas[k] = new int[r];
+            for (int j = 0; j < r; j++) {
+                replicas[k][j] = order[j];
+                partitionLoad[order[j]] += wc.getCount() / r;
+            }
+            byte[] key = wc.getWord().getBytes(StandardCharsets.ISO_8859_1);
+            int h = WordCounter.hash(key, 0, key.length);
+            hot.add(key, 0, key.length, h, k + 1);
+            load[bucket(h)] = Math.max(0, load[bucket(h)] - wc.getCount());
+        }
+
+        // Then buckets, heaviest first, each to the least loaded reducer
+        Integer[] buckets = new Integer[BUCKETS];
+        for (int b = 0; b < BUCKETS; b++) {
+            buckets[b] = b;
+        }
+        Arrays.sort(buckets, Comparator.comparingLong((Integer b) -> load[b]).reversed());
+        int[] owners = new int[BUCKETS];
+        int spread = 0;
+        for (int b : buckets) {
+            int target;
+            if (load[b] == 0) {
+                target = spread++ % partitions;
+            } else {
+                target = 0;
+                for (int p = 1; p < partitions; p++) {
+                    if (partitionLoad[p] < partitionLoad[target]) {
+                        target = p;
+                    }
+                }
+            }
+            owners[b] = target;
+            partitionLoad[target] += load[b];
+        }
+        return new Partitioner(partitions, owners, hot, replicas);
+    }
+
+    private static Integer[] leastLoaded(long[] partitionLoad) {
+        Integer[] order = new Integer[partitionLoad.length];
+        for (int p = 0; p < order.length; p++) {
+            order[p] = p;
+        }
+        Arrays.sort(order, Comparator.comparingLong((Integer p) -> partitionLoad[p]));
+        return order;
+    }
+
+    /**
+     * Text form for the control channel: "owner,owner,...;word=p/p,word=p/p".
+     */
+    public String encode() {
+        if (owners == null) {
+            return "hash";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int b = 0; b < BUCKETS; b++) {
+            sb.append(b == 0 ? "" : ",").append(owners[b]);
+        }
+        sb.append(';');
+        for (int i = 0; i < hot.size(); i++) {
+            int[] group = replicas[(int) hot.count(i) - 1];
+            sb.append(i == 0 ? "" : ",").append(hot.word(i)).append('=');
+            for (int j = 0; j < group.length; j++) {
+                sb.append(j == 0 ? "" : "/").append(group[j]);
+            }
+        }
+        return sb.toString();
+    }
+
+    public static Partitioner decode(String text, int partitions) {
+        if (text.equals("hash")) {
+            return hash(partitions);
+        }
+        String[] parts = text.split(";", -1);
+        String[] ownerFields = parts[0].split(",");
+        int[] owners = new int[BUCKETS];
+        for (int b = 0; b < BUCKETS; b++) {
+            owners[b] = Integer.parseInt(ownerFields[b]);
+        }
+        String[] hotFields = parts[1].isEmpty() ? new String[0] : parts[1].split(",");
+        WordCounter hot = new WordCounter(Math.max(16, hotFields.length));
+        int[][] replicas = new int[hotFields.length][];
+        for (int k = 0; k < hotFields.length; k++) {
+            String[] kv = hotFields[k].split("=");
+            String[] group = kv[1].split("/");
+            replicas[k] = new int[group.length];
+            for (int j = 0; j < group.length; j++) {
+                replicas[k][j] = Integer.parseInt(group[j]);
+            }
+            hot.add(kv[0], k + 1);
+        }
+        return new Partitioner(partitions, owners, hot, replicas);
+    }
+
+    /**
+     * Map-side statistics: load per hash bucket and heaviest keys.
+     */
+    public static final class Sampler implements WordCounter.EntryVisitor {
+        private final long[] bucketLoad = new long[BUCKETS];
+        private final PriorityQueue<WordCount> candidates =
+                new PriorityQueue<>(HOT_CANDIDATES + 1, Comparator.comparingLong(WordCount::getCount));
+
+        /**
+         * Account every entry of a map output counter.
+         */
+        public void addAll(WordCounter counter) {
+            for (int i = 0; i < counter.size(); i++) {
+                add(counter.arena(), counter.offset(i), counter.length(i), counter.hash(i), counter.count(i));
+            }
+        }
+
+        /**
+         * Account one key with its total map output count (e.g. from a merged {@link SpillingCounter}).
+         */
+        @Override
+        public void visit(byte[] b, int off, int len, long count) {
+            add(b, off, len, WordCounter.hash(b, off, len), count);
+        }
+
+        private void add(byte[] b, int off, int len, int h, long count) {
+            long load = count * (len + 1);
+            bucketLoad[bucket(h)] += load;
+            // Only materialize the word when it can enter the candidates
+            if (candidates.size() < HOT_CANDIDATES || load > candidates.peek().getCount()) {
+                candidates.add(new WordCount(new String(b, off, len, StandardCharsets.ISO_8859_1), load));
+                if (candidates.size() > HOT_CANDIDATES) {
+                    candidates.poll();
+                }
+            }
+        }
+
+        /**
+         * Text form for the control channel: "load,load,...;word=load,word=load".
+         */
+        public String encode() {
+            StringBuilder sb = new StringBuilder();
+            for (int b = 0; b < BUCKETS; b++) {
+                sb.append(b == 0 ? "" : ",").append(bucketLoad[b]);
+            }
+            sb.append(';');
+            boolean first = true;
+            for (WordCount wc : candidates) {
+                sb.append(first ? "" : ",").append(wc.getWord()).append('=').append(wc.getCount());
+                first = false;
+            }
+            return sb.toString();
+        }
+
+        public static Sampler decode(String text) {
+            Sampler s = new Sampler();
+            String[] parts = text.split(";", -1);
+            String[] loads = parts[0].split(",");
+            for (int b = 0; b < BUCKETS; b++) {
+                s.bucketLoad[b] = Long.parseLong(loads[b]);
+            }
+            if (!parts[1].isEmpty()) {
+                for (String field : parts[1].split(",")) {
+                    String[] kv = field.split("=");
+                    s.candidates.add(new WordCount(kv[0], Long.parseLong(kv[1])));
+                }
+            }
+            return s;
+        }
+    }
+}
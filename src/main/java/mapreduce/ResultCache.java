@@ -0,0 +1,221 @@
+package mapreduce;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * On-disk cache of map results, so that a job run again over the same inputs only
+ * maps the files (or file ranges) that are new or changed and merges the others
+ * from here.
+ *
+ * An entry holds the word counts of the bytes [offset, end) of a file and is keyed
+ * by the file path, size and modification time: a file rewritten since is a miss,
+ * and its entry is replaced by the next store. After a short header, the counts are
+ * varint-encoded as in the spill runs and deflated. Entries are written to a
+ * temporary file then renamed, so a reader never sees a partial entry.
+ */
+public final class ResultCache {
+    // "WCR1"
+    private static final int MAGIC = 0x57435231;
+    private static final int BUFFER = 64 * 1024;
+
+    private final Path dir;
+
+    public ResultCache(Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Cache in the directory named by the mapreduce.cache system property, null (no cache) if it is unset.
+     */
+    public static ResultCache fromSystemProperty() {
+        String dir = System.getProperty("mapreduce.cache");
+        return dir == null ? null : new ResultCache(Paths.get(dir));
+    }
+
+    /**
+     * Identity of the bytes [offset, end) of a file as it is now.
+     */
+    public static final class Key {
+        final String path;
+        final long size;
+        final long modified;
+        final long offset;
+        final long end;
+
+        Key(String path, long size, long modified, long offset, long end) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.offset = offset;
+            this.end = end;
+        }
+
+        @Override
+        public String toString() {
+            return path + "[" + offset + ", " + end + ")";
+        }
+    }
+
+    /**
+     * Key of a whole file.
+     */
+    public static Key key(Path file) throws IOException {
+        return key(file, 0, -1);
+    }
+
+    /**
+     * Key of the bytes [offset, end) of a file; end = -1 stands for the file size.
+     */
+    public static Key key(Path file, long offset, long end) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        return new Key(file.toAbsolutePath().normalize().toString(), attributes.size(),
+                attributes.lastModifiedTime().toMillis(), offset, end < 0 ? attributes.size() : end);
+    }
+
+    public boolean contains(Key key) throws IOException {
+        try (DataInputStream in = open(key)) {
+            return in != null;
+        }
+    }
+
+    /**
+     * Add the cached counts of key to into. Returns false, leaving into unchanged, on a miss.
+     */
+    public boolean load(Key key, SpillingCounter into) throws IOException {
+        try (DataInputStream header = open(key)) {
+            if (header == null) {
+                return false;
+            }
+            InputStream in = new BufferedInputStream(new InflaterInputStream(header), BUFFER);
+            byte[] word = new byte[64];
+            int first;
+            while ((first = in.read()) >= 0) {
+                int length = (int) readVarLong(in, first);
+                if (word.length < length) {
+                    word = new byte[Math.max(length, word.length * 2)];
+                }
+                int n = 0;
+                while (n < length) {
+                    int r = in.read(word, n, length - n);
+                    if (r < 0) {
+                        throw new EOFException("Truncated cache entry for " + key);
+                    }
+                    n += r;
+                }
+                into.add(word, 0, length, readVarLong(in, in.read()));
+            }
+            return true;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Write the counts of key, replacing any previous entry for the same range. Returns the entry size in bytes.
+     */
+    public long store(Key key, SpillingCounter counts) throws IOException {
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, ".entry-", ".tmp");
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), BUFFER))) {
+            out.writeInt(MAGIC);
+            out.writeUTF(key.path);
+            out.writeLong(key.size);
+            out.writeLong(key.modified);
+            out.writeLong(key.offset);
+            out.writeLong(key.end);
+            DeflaterOutputStream z = new DeflaterOutputStream(out, deflater, BUFFER);
+            byte[] varint = new byte[10];
+            counts.forEach((b, off, len, count) -> {
+                try {
+                    z.write(varint, 0, ShuffleProtocol.putVarLong(varint, 0, len));
+                    z.write(b, off, len);
+                    z.write(varint, 0, ShuffleProtocol.putVarLong(varint, 0, count));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            z.finish();
+        } catch (IOException | UncheckedIOException e) {
+            Files.deleteIfExists(tmp);
+            throw e instanceof UncheckedIOException ? ((UncheckedIOException) e).getCause() : (IOException) e;
+        } finally {
+            deflater.end();
+        }
+        long size = Files.size(tmp);
+        Files.move(tmp, entry(key), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return size;
+    }
+
+    /**
+     * Entry of key positioned after its header, or null if there is none or it is stale.
+     */
+    private DataInputStream open(Key key) throws IOException {
+        Path entry = entry(key);
+        if (!Files.isRegularFile(entry)) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(entry), BUFFER));
+        try {
+            if (in.readInt() == MAGIC && in.readUTF().equals(key.path) && in.readLong() == key.size
+                    && in.readLong() == key.modified && in.readLong() == key.offset && in.readLong() == key.end) {
+                return in;
+            }
+        } catch (EOFException e) {
+            // truncated header, same as a stale entry
+        }
+        in.close();
+        return null;
+    }
+
+    /**
+     * One entry per file range: a later store for a changed file overwrites the stale entry.
+     */
+    private Path entry(Key key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key.path + "\n" + key.offset).getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder();
+            for (byte b : digest) {
+                name.append(String.format("%02x", b));
+            }
+            return dir.resolve(name.append(".counts").toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long readVarLong(InputStream in, int b) throws IOException {
+        long v = 0;
+        int shift = 0;
+        while (true) {
+            if (b < 0 || shift > 63) {
+                throw new EOFException("Truncated cache entry");
+            }
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+            shift += 7;
+            b = in.read();
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package mapreduce;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Binary framing of the shuffle between WorkerMultiNodes peers.
+ *
+ * Each worker keeps one long-lived connection per peer. A connection starts
+ * with a HELLO frame carrying the sender index, then carries any number of
+ * partitions, each made of BATCH (or DEFLATED) frames followed by an END marker:
+ *
+ *   HELLO    : byte 1, int sender
+ *   BATCH    : byte 2, int payloadLength, payload = entries (varint keyLength, key bytes, varint count)
+ *   END      : byte 3, int sender
+ *   DEFLATED : byte 4, int payloadLength, int compressedLength, payload compressed with the JDK Deflater
+ *
+ * The codec is chosen by the sender, per connection; receivers accept both.
+ */
+public final class ShuffleProtocol {
+    static final byte HELLO = 1;
+    static final byte BATCH = 2;
+    static final byte END = 3;
+    static final byte DEFLATED = 4;
+
+    /**
+     * Compression applied to outgoing batches.
+     */
+    public enum Codec {
+        NONE, DEFLATE;
+
+        /**
+         * Codec named by the mapreduce.shuffle.codec system property (none by default).
+         */
+        public static Codec fromSystemProperty() {
+            return valueOf(System.getProperty("mapreduce.shuffle.codec", "none").toUpperCase());
+        }
+    }
+
+    // A batch is flushed once its payload reaches this size
+    static final int BATCH_BYTES = 64 * 1024;
+
+    /**
+     * Callbacks of {@link #receive}, invoked on the connection's reader thread.
+     */
+    public interface Listener {
+        void entry(int sender, byte[] buf, int off, int len, long count);
+
+        void endOfPartition(int sender);
+    }
+
+    private ShuffleProtocol() {
+    }
+
+    /**
+     * Sending side of one peer connection: buffers entries into batches.
+     */
+    public static final class Sender implements AutoCloseable {
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final int senderIndex;
+        private final Deflater deflater;
+        private byte[] batch = new byte[BATCH_BYTES + 64];
+        private byte[] compressed;
+        private int batchSize;
+        private long bytesSent;
+
+        public Sender(Socket socket, int senderIndex, Codec codec) throws IOException {
+            this.socket = socket;
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BATCH_BYTES + 1024));
+            this.senderIndex = senderIndex;
+            this.deflater = codec == Codec.DEFLATE ? new Deflater(Deflater.BEST_SPEED) : null;
+            out.writeByte(HELLO);
+            out.writeInt(senderIndex);
+            out.flush();
+        }
+
+        public void add(byte[] key, int off, int len, long count) throws IOException {
+            if (batchSize + len + 15 > batch.length) {
+                if (batchSize > 0) {
+                    flushBatch();
+                }
+                if (len + 15 > batch.length) {
+                    batch = new byte[len + 15];
+                }
+            }
+            batchSize = putVarLong(batch, batchSize, len);
+            System.arraycopy(key, off, batch, batchSize, len);
+            batchSize += len;
+            batchSize = putVarLong(batch, batchSize, count);
+            if (batchSize >= BATCH_BYTES) {
+                flushBatch();
+            }
+        }
+
+        /**
+         * Flush the pending batch and mark the end of this sender's partition.
+         */
+        public void endPartition() throws IOException {
+            if (batchSize > 0) {
+                flushBatch();
+            }
+            out.writeByte(END);
+            out.writeInt(senderIndex);
+            out.flush();
+        }
+
+        public boolean isClosed() {
+            return socket.isClosed();
+        }
+
+        /**
+         * Bytes of batch frames written so far, after compression.
+         */
+        public long bytesSent() {
+            return bytesSent;
+        }
+
+        private void flushBatch() throws IOException {
+            if (deflater == null) {
+                out.writeByte(BATCH);
+                out.writeInt(batchSize);
+                out.write(batch, 0, batchSize);
+                bytesSent += 5 + batchSize;
+            } else {
+                deflater.reset();
+                deflater.setInput(batch, 0, batchSize);
+                deflater.finish();
+                if (compressed == null || compressed.length < batch.length + 64) {
+                    compressed = new byte[batch.length + 64];
+                }
+                int compressedSize = 0;
+                while (!deflater.finished()) {
+                    if (compressedSize == compressed.length) {
+                        compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                    }
+                    compressedSize += deflater.deflate(compressed, compressedSize, compressed.length - compressedSize);
+                }
+                out.writeByte(DEFLATED);
+                out.writeInt(batchSize);
+                out.writeInt(compressedSize);
+                out.write(compressed, 0, compressedSize);
+                bytesSent += 9 + compressedSize;
+            }
+            batchSize = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (deflater != null) {
+                deflater.end();
+            }
+            socket.close();
+        }
+    }
+
+    /**
+     * Read frames from a peer connection until it is closed.
+     */
+    public static void receive(Socket socket, Listener listener) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BATCH_BYTES + 1024));
+        int sender = -1;
+        byte[] payload = new byte[BATCH_BYTES];
+        byte[] compressed = null;
+        Inflater inflater = null;
+        try {
+            while (true) {
+                int type = in.read();
+                if (type < 0) {
+                    return;
+                }
+                int length;
+                switch (type) {
+                    case HELLO:
+                        sender = in.readInt();
+                        break;
+                    case BATCH:
+                        length = in.readInt();
+                        if (length > payload.length) {
+                            payload = new byte[length];
+                        }
+                        in.readFully(payload, 0, length);
+                        decode(sender, payload, length, listener);
+                        break;
+                    case DEFLATED:
+                        length = in.readInt();
+                        int compressedLength = in.readInt();
+                        if (length > payload.length) {
+                            payload = new byte[length];
+                        }
+                        if (compressed == null || compressedLength > compressed.length) {
+                            compressed = new byte[Math.max(compressedLength, BATCH_BYTES)];
+                        }
+                        in.readFully(compressed, 0, compressedLength);
+                        if (inflater == null) {
+                            inflater = new Inflater();
+                        }
+                        inflater.reset();
+                        inflater.setInput(compressed, 0, compressedLength);
+                        try {
+                            int n = 0;
+                            while (n < length && !inflater.finished()) {
+                                int inflated = inflater.inflate(payload, n, length - n);
+                                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                                    throw new DataFormatException("truncated stream");
+                                }
+                                n += inflated;
+                            }
+                            // The rest of the buffer holds the previous batch, never decode it
+                            if (n != length) {
+                                throw new DataFormatException(n + " bytes inflated, " + length + " expected");
+                            }
+                        } catch (DataFormatException e) {
+                            throw new IOException("Corrupted shuffle batch from worker " + sender, e);
+                        }
+                        decode(sender, payload, length, listener);
+                        break;
+                    case END:
+                        listener.endOfPartition(in.readInt());
+                        break;
+                    default:
+                        throw new IOException("Unknown shuffle frame type " + type);
+                }
+            }
+        } finally {
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+    }
+
+    private static void decode(int sender, byte[] payload, int length, Listener listener) throws EOFException {
+        int[] pos = new int[1];
+        while (pos[0] < length) {
+            long keyLength = getVarLong(payload, pos, length);
+            int keyOffset = pos[0];
+            // Bytes past length belong to an earlier batch: a key running into them is a corrupt frame
+            if (keyLength < 0 || keyLength > length - keyOffset) {
+                throw new EOFException("Truncated key in shuffle batch");
+            }
+            pos[0] += (int) keyLength;
+            long count = getVarLong(payload, pos, length);
+            listener.entry(sender, payload, keyOffset, (int) keyLength, count);
+        }
+    }
+
+    static int putVarLong(byte[] buf, int pos, long v) {
+        while ((v & ~0x7FL) != 0) {
+            buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buf[pos++] = (byte) v;
+        return pos;
+    }
+
+    static long getVarLong(byte[] buf, int[] pos) throws EOFException {
+        return getVarLong(buf, pos, buf.length);
+    }
+
+    /**
+     * Varint at pos[0], which must end before limit; pos[0] is moved past it.
+     */
+    static long getVarLong(byte[] buf, int[] pos, int limit) throws EOFException {
+        long v = 0;
+        int shift = 0;
+        int p = pos[0];
+        while (true) {
+            if (p >= limit || shift > 63) {
+                throw new EOFException("Truncated varint in shuffle batch");
+            }
+            byte b = buf[p++];
+            v |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                break;
+            }
+            shift += 7;
+        }
+        pos[0] = p;
+        return v;
+    }
+}
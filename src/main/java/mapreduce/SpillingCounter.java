@@ -0,0 +1,377 @@
+package mapreduce;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Word counter with a memory budget, for vocabularies larger than the heap.
+ *
+ * Counts are combined in an in-memory {@link WordCounter}. Once its estimated
+ * footprint goes over the budget, its entries are sorted by key and written to
+ * a run file on local disk, and the counter is cleared. {@link #forEach}
+ * k-way merges the runs with the entries still in memory, so each key is
+ * visited once, with its total count, in key order. When more than MAX_RUNS
+ * runs pile up they are merged into one, which bounds the number of files open
+ * during a merge.
+ *
+ * As long as nothing was spilled, forEach visits the in-memory entries directly,
+ * in insertion order. Not thread-safe; close() deletes the run files.
+ */
+public final class SpillingCounter implements AutoCloseable {
+    // Merge fan-in: at most this many runs are read at once
+    static final int MAX_RUNS = 64;
+    static final int RUN_BUFFER = 64 * 1024;
+
+    private final long budgetBytes;
+    private final Path spillDir;
+    private final WordCounter memory = new WordCounter();
+    private final List<Path> runs = new ArrayList<>();
+    private long spilledBytes;
+
+    public SpillingCounter(long budgetBytes, Path spillDir) {
+        this.budgetBytes = budgetBytes;
+        this.spillDir = spillDir;
+    }
+
+    /**
+     * Total memory budget named by the mapreduce.memoryBudget system property, in bytes
+     * (a quarter of the maximum heap by default), to be shared between the counters of a process.
+     */
+    public static long budgetFromSystemProperty() {
+        return Long.getLong("mapreduce.memoryBudget", Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    /**
+     * Directory of the run files, named by the mapreduce.spillDir system property (java.io.tmpdir by default).
+     */
+    public static Path spillDirFromSystemProperty() {
+        return Paths.get(System.getProperty("mapreduce.spillDir", System.getProperty("java.io.tmpdir")));
+    }
+
+    public void add(byte[] b, int off, int len) {
+        add(b, off, len, WordCounter.hash(b, off, len), 1);
+    }
+
+    public void add(byte[] b, int off, int len, long delta) {
+        add(b, off, len, WordCounter.hash(b, off, len), delta);
+    }
+
+    /**
+     * Add delta to the count of a key, spilling the in-memory counter if it goes over budget.
+     *
+     * @throws UncheckedIOException if the spill fails
+     */
+    void add(byte[] b, int off, int len, int h, long delta) {
+        memory.add(b, off, len, h, delta);
+        if (memory.usedBytes() > budgetBytes) {
+            try {
+                spill();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    public void addAll(WordCounter other) {
+        for (int i = 0; i < other.size(); i++) {
+            add(other.arena(), other.offset(i), other.length(i), other.hash(i), other.count(i));
+        }
+    }
+
+    /**
+     * Move every count of other into this counter: its runs are taken over as they are,
+     * its in-memory entries are added. other is left empty.
+     */
+    public void addAll(SpillingCounter other) throws IOException {
+        runs.addAll(other.runs);
+        spilledBytes += other.spilledBytes;
+        other.runs.clear();
+        other.spilledBytes = 0;
+        try {
+            addAll(other.memory);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        other.memory.clear();
+        if (runs.size() > MAX_RUNS) {
+            compact();
+        }
+    }
+
+    /**
+     * Write the in-memory entries to a run now, e.g. before setting the counter aside
+     * while other counters fill the memory.
+     */
+    public void flush() throws IOException {
+        spill();
+    }
+
+    public boolean isEmpty() {
+        return runs.isEmpty() && memory.isEmpty();
+    }
+
+    public int runCount() {
+        return runs.size();
+    }
+
+    /**
+     * Bytes written to run files so far.
+     */
+    public long spilledBytes() {
+        return spilledBytes;
+    }
+
+    /**
+     * Visit every key once with its total count: in key order if anything was spilled,
+     * in insertion order otherwise. The key is only valid during the call.
+     */
+    public void forEach(WordCounter.EntryVisitor visitor) throws IOException {
+        if (runs.isEmpty()) {
+            memory.forEach(visitor);
+        } else {
+            merge(runs, true, visitor);
+        }
+    }
+
+    /**
+     * Delete the run files and clear the in-memory entries.
+     */
+    public void clear() {
+        for (Path run : runs) {
+            try {
+                Files.deleteIfExists(run);
+            } catch (IOException e) {
+                System.err.println("Cannot delete spill file " + run + ": " + e.getMessage());
+            }
+        }
+        runs.clear();
+        memory.clear();
+    }
+
+    @Override
+    public void close() {
+        clear();
+    }
+
+    // ---- Runs ----
+
+    private void spill() throws IOException {
+        if (memory.isEmpty()) {
+            return;
+        }
+        Path run = Files.createTempFile(spillDir, "wordcount-run-", ".bin");
+        try (RunWriter out = new RunWriter(run)) {
+            byte[] arena = memory.arena();
+            for (int e : memory.sortedEntries()) {
+                out.write(arena, memory.offset(e), memory.length(e), memory.count(e));
+            }
+            spilledBytes += out.written;
+        }
+        runs.add(run);
+        memory.clear();
+        if (runs.size() > MAX_RUNS) {
+            compact();
+        }
+    }
+
+    /**
+     * Merge every run into a single one.
+     */
+    private void compact() throws IOException {
+        Path merged = Files.createTempFile(spillDir, "wordcount-run-", ".bin");
+        try (RunWriter out = new RunWriter(merged)) {
+            merge(runs, false, (arena, off, len, count) -> {
+                try {
+                    out.write(arena, off, len, count);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            spilledBytes += out.written;
+        } catch (UncheckedIOException e) {
+            Files.deleteIfExists(merged);
+            throw e.getCause();
+        }
+        for (Path run : runs) {
+            Files.deleteIfExists(run);
+        }
+        runs.clear();
+        runs.add(merged);
+    }
+
+    /**
+     * K-way merge of the runs (and of the in-memory entries if withMemory), summing equal keys.
+     */
+    private void merge(List<Path> files, boolean withMemory, WordCounter.EntryVisitor visitor) throws IOException {
+        PriorityQueue<Cursor> heap = new PriorityQueue<>(files.size() + 1,
+                (x, y) -> WordCounter.compareKeys(x.key, x.offset, x.length, y.key, y.offset, y.length));
+        List<RunReader> readers = new ArrayList<>();
+        try {
+            for (Path file : files) {
+                RunReader reader = new RunReader(file);
+                readers.add(reader);
+                if (reader.next()) {
+                    heap.add(reader);
+                }
+            }
+            if (withMemory && !memory.isEmpty()) {
+                MemoryCursor cursor = new MemoryCursor(memory);
+                cursor.next();
+                heap.add(cursor);
+            }
+            byte[] key = new byte[64];
+            while (!heap.isEmpty()) {
+                Cursor head = heap.poll();
+                if (key.length < head.length) {
+                    key = new byte[Math.max(head.length, key.length * 2)];
+                }
+                int length = head.length;
+                System.arraycopy(head.key, head.offset, key, 0, length);
+                long count = head.count;
+                advance(heap, head);
+                while (!heap.isEmpty() && WordCounter.compareKeys(heap.peek().key, heap.peek().offset, heap.peek().length, key, 0, length) == 0) {
+                    Cursor same = heap.poll();
+                    count += same.count;
+                    advance(heap, same);
+                }
+                visitor.visit(key, 0, length, count);
+            }
+        } finally {
+            for (RunReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    private static void advance(PriorityQueue<Cursor> heap, Cursor cursor) throws IOException {
+        if (cursor.next()) {
+            heap.add(cursor);
+        }
+    }
+
+    /**
+     * Current entry of a sorted input; the key slice is only valid until the next call to next().
+     */
+    private abstract static class Cursor {
+        byte[] key = new byte[64];
+        int offset;
+        int length;
+        long count;
+
+        abstract boolean next() throws IOException;
+    }
+
+    private static final class MemoryCursor extends Cursor {
+        private final WordCounter counter;
+        private final int[] order;
+        private int position;
+
+        MemoryCursor(WordCounter counter) {
+            this.counter = counter;
+            this.order = counter.sortedEntries();
+            this.key = counter.arena();
+        }
+
+        @Override
+        boolean next() {
+            if (position == order.length) {
+                return false;
+            }
+            int e = order[position++];
+            offset = counter.offset(e);
+            length = counter.length(e);
+            count = counter.count(e);
+            return true;
+        }
+    }
+
+    /**
+     * Run file entries: varint key length, key bytes, varint count (same encoding as the shuffle batches).
+     */
+    private static final class RunWriter implements AutoCloseable {
+        private final OutputStream out;
+        private final byte[] varint = new byte[10];
+        long written;
+
+        RunWriter(Path file) throws IOException {
+            this.out = new BufferedOutputStream(Files.newOutputStream(file), RUN_BUFFER);
+        }
+
+        void write(byte[] b, int off, int len, long count) throws IOException {
+            int n = ShuffleProtocol.putVarLong(varint, 0, len);
+            out.write(varint, 0, n);
+            out.write(b, off, len);
+            written += n + len;
+            n = ShuffleProtocol.putVarLong(varint, 0, count);
+            out.write(varint, 0, n);
+            written += n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    private static final class RunReader extends Cursor implements AutoCloseable {
+        private final InputStream in;
+
+        RunReader(Path file) throws IOException {
+            this.in = new BufferedInputStream(Files.newInputStream(file), RUN_BUFFER);
+        }
+
+        @Override
+        boolean next() throws IOException {
+            int first = in.read();
+            if (first < 0) {
+                return false;
+            }
+            length = (int) readVarLong(first);
+            if (key.length < length) {
+                key = new byte[Math.max(length, key.length * 2)];
+            }
+            int n = 0;
+            while (n < length) {
+                int r = in.read(key, n, length - n);
+                if (r < 0) {
+                    throw new EOFException("Truncated spill run");
+                }
+                n += r;
+            }
+            count = readVarLong(in.read());
+            return true;
+        }
+
+        private long readVarLong(int b) throws IOException {
+            long v = 0;
+            int shift = 0;
+            while (true) {
+                if (b < 0 || shift > 63) {
+                    throw new EOFException("Truncated spill run");
+                }
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+                shift += 7;
+                b = in.read();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
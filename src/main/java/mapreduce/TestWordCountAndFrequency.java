@@ -1,58 +1,48 @@
 package mapreduce;
 
+import java.io.IOException;
 import java.lang.Thread;
+import java.nio.file.Path;
+import java.util.List;
 
 public class TestWordCountAndFrequency {
-    public static void main(String[] args) {
-        WordCountThread t1 = new WordCountThread("texts/CC-MAIN-20230321002050-20230321032050-00472.warc.wet");
-        WordCountThread t2 = new WordCountThread("texts/CC-MAIN-20230321002050-20230321032050-00446.warc.wet");
-        WordCountThread t3 = new WordCountThread("texts/CC-MAIN-20230321002050-20230321032050-00460.warc.wet");
-        WordCountThread t4 = new WordCountThread("texts/CC-MAIN-20230321002050-20230321032050-00486.warc.wet");
-
-        Thread thread1 = new Thread(t1);
-        Thread thread2 = new Thread(t2);
-        Thread thread3 = new Thread(t3);
-        Thread thread4 = new Thread(t4);
+    public static void main(String[] args) throws IOException {
+        // One thread per input file: a file, a directory or a glob (texts/ by default)
+        List<Path> inputs = InputFiles.resolve(args.length > 0 ? args[0] : "texts");
 
+        Thread[] threads = new Thread[inputs.size()];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new WordCountThread(inputs.get(i).toString()));
+        }
         long startTime = System.currentTimeMillis();
-        thread1.start();
-        thread2.start();
-        thread3.start();
-        thread4.start();
+        for (Thread thread : threads) {
+            thread.start();
+        }
         try {
-            thread1.join();
-            thread2.join();
-            thread3.join();
-            thread4.join();
+            for (Thread thread : threads) {
+                thread.join();
+            }
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
         long endTime = System.currentTimeMillis();
         System.out.println("Total time taken to start threads: " + (endTime - startTime) + " ms");
 
-        WordFrequencyThread t5 = new WordFrequencyThread("texts/CC-MAIN-20230321002050-20230321032050-00472.warc.wet");
-        WordFrequencyThread t6 = new WordFrequencyThread("texts/CC-MAIN-20230321002050-20230321032050-00446.warc.wet");
-        WordFrequencyThread t7 = new WordFrequencyThread("texts/CC-MAIN-20230321002050-20230321032050-00460.warc.wet");
-        WordFrequencyThread t8 = new WordFrequencyThread("texts/CC-MAIN-20230321002050-20230321032050-00486.warc.wet");
-        Thread thread5 = new Thread(t5);
-        Thread thread6 = new Thread(t6);
-        Thread thread7 = new Thread(t7);
-        Thread thread8 = new Thread(t8);
-
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new WordFrequencyThread(inputs.get(i).toString()));
+        }
         startTime = System.currentTimeMillis();
-        thread5.start();
-        thread6.start();
-        thread7.start();
-        thread8.start();
+        for (Thread thread : threads) {
+            thread.start();
+        }
         try {
-            thread5.join();
-            thread6.join();
-            thread7.join();
-            thread8.join();
+            for (Thread thread : threads) {
+                thread.join();
+            }
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
         endTime = System.currentTimeMillis();
         System.out.println("Total time taken to start threads: " + (endTime - startTime) + " ms");
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,152 @@
+package mapreduce;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Single-pass word tokenizer shared by every engine.
+ *
+ * A word is a maximal run of non-whitespace characters, lowercased, with every
+ * character outside [a-z0-9] dropped: the same rule as the former
+ * toLowerCase().replaceAll("[^a-z0-9\\s]", "").split("\\s+") pipeline, without
+ * the regex and the intermediate Strings. Input is scanned once, as raw bytes
+ * (ASCII / UTF-8, multi-byte sequences are simply dropped) or as chars.
+ *
+ * Each completed word is handed to the {@link WordSink} as a slice of an
+ * internal buffer that is reused for the next word, so the sink must copy
+ * the bytes if it keeps them. A word may span several feed() calls; call
+ * {@link #finish()} at the end of the input (or of a line read without its
+ * terminator) to flush it.
+ */
+public final class Tokenizer {
+
+    /**
+     * Receives the words produced by a {@link Tokenizer}.
+     */
+    public interface WordSink {
+        void word(byte[] buf, int off, int len);
+    }
+
+    private static final byte SEPARATOR = -1;
+    private static final byte DROP = 0;
+
+    // Byte class table: SEPARATOR, DROP, or the lowercased character to keep.
+    private static final byte[] CLASSES = new byte[256];
+
+    static {
+        for (char c = 'a'; c <= 'z'; c++) {
+            CLASSES[c] = (byte) c;
+            CLASSES[Character.toUpperCase(c)] = (byte) c;
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            CLASSES[c] = (byte) c;
+        }
+        // Same set as the regex \s
+        for (char c : new char[]{' ', '\t', '\n', 0x0B, '\f', '\r'}) {
+            CLASSES[c] = SEPARATOR;
+        }
+    }
+
+    private final WordSink sink;
+    private byte[] word = new byte[64];
+    private int length;
+
+    public Tokenizer(WordSink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Tokenize len bytes of b starting at off.
+     */
+    public void feed(byte[] b, int off, int len) {
+        byte[] w = word;
+        int n = length;
+        for (int i = off, end = off + len; i < end; i++) {
+            byte c = CLASSES[b[i] & 0xFF];
+            if (c > 0) {
+                if (n == w.length) {
+                    w = grow();
+                }
+                w[n++] = c;
+            } else if (c == SEPARATOR && n > 0) {
+                sink.word(w, 0, n);
+                n = 0;
+            }
+        }
+        length = n;
+    }
+
+    /**
+     * Tokenize the remaining bytes of buf (heap or direct/mapped) and consume them.
+     */
+    public void feed(ByteBuffer buf) {
+        if (buf.hasArray()) {
+            feed(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            buf.position(buf.limit());
+            return;
+        }
+        byte[] w = word;
+        int n = length;
+        for (int i = buf.position(), end = buf.limit(); i < end; i++) {
+            byte c = CLASSES[buf.get(i) & 0xFF];
+            if (c > 0) {
+                if (n == w.length) {
+                    w = grow();
+                }
+                w[n++] = c;
+            } else if (c == SEPARATOR && n > 0) {
+                sink.word(w, 0, n);
+                n = 0;
+            }
+        }
+        length = n;
+        buf.position(buf.limit());
+    }
+
+    /**
+     * Tokenize a char sequence; non-ASCII characters are dropped.
+     */
+    public void feed(CharSequence s) {
+        byte[] w = word;
+        int n = length;
+        for (int i = 0, end = s.length(); i < end; i++) {
+            char ch = s.charAt(i);
+            byte c = ch < 128 ? CLASSES[ch] : DROP;
+            if (c > 0) {
+                if (n == w.length) {
+                    w = grow();
+                }
+                w[n++] = c;
+            } else if (c == SEPARATOR && n > 0) {
+                sink.word(w, 0, n);
+                n = 0;
+            }
+        }
+        length = n;
+    }
+
+    /**
+     * Tokenize one line read without its terminator.
+     */
+    public void line(CharSequence s) {
+        feed(s);
+        finish();
+    }
+
+    /**
+     * Flush the word in progress, if any.
+     */
+    public void finish() {
+        if (length > 0) {
+            int n = length;
+            length = 0;
+            sink.word(word, 0, n);
+        }
+    }
+
+    private byte[] grow() {
+        byte[] bigger = new byte[word.length * 2];
+        System.arraycopy(word, 0, bigger, 0, word.length);
+        word = bigger;
+        return bigger;
+    }
+}
@@ -0,0 +1,101 @@
+package mapreduce;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Top-K selection with a bounded min-heap, so that only K entries are ever
+ * sorted instead of the whole vocabulary.
+ *
+ * Results are ordered by decreasing count, ties broken by word, which makes
+ * the output deterministic whatever the partitioning.
+ */
+public final class TopK {
+    public static final Comparator<WordCount> ORDER =
+            Comparator.comparingLong(WordCount::getCount).reversed().thenComparing(WordCount::getWord);
+
+    private TopK() {
+    }
+
+    /**
+     * The k most frequent entries of a counter.
+     */
+    public static List<WordCount> of(WordCounter counter, int k) {
+        return of(counter, k, null);
+    }
+
+    /**
+     * The k most frequent entries of a counter, skipping the keys present in exclude (may be null).
+     */
+    public static List<WordCount> of(WordCounter counter, int k, WordCounter exclude) {
+        boolean filter = exclude != null && !exclude.isEmpty();
+        Selector selector = new Selector(k);
+        for (int i = 0; i < counter.size(); i++) {
+            if (filter && exclude.get(counter.arena(), counter.offset(i), counter.length(i), counter.hash(i)) != 0) {
+                continue;
+            }
+            selector.visit(counter.arena(), counter.offset(i), counter.length(i), counter.count(i));
+        }
+        return selector.result();
+    }
+
+    /**
+     * Streaming top-K: keeps the k most frequent of the visited entries.
+     */
+    public static final class Selector implements WordCounter.EntryVisitor {
+        private final int k;
+        private final PriorityQueue<WordCount> heap;
+
+        public Selector(int k) {
+            this.k = k;
+            this.heap = new PriorityQueue<>(Math.max(1, k + 1), ORDER.reversed());
+        }
+
+        @Override
+        public void visit(byte[] b, int off, int len, long count) {
+            // Only materialize the word when it can enter the heap
+            if (k > 0 && (heap.size() < k || count >= heap.peek().getCount())) {
+                offer(heap, new WordCount(new String(b, off, len, StandardCharsets.ISO_8859_1), count), k);
+            }
+        }
+
+        public List<WordCount> result() {
+            return drain(heap);
+        }
+    }
+
+    /**
+     * Merge top-K lists computed on disjoint partitions into the global top-K.
+     */
+    public static List<WordCount> merge(List<List<WordCount>> lists, int k) {
+        PriorityQueue<WordCount> heap = new PriorityQueue<>(Math.max(1, k + 1), ORDER.reversed());
+        for (List<WordCount> list : lists) {
+            for (WordCount wc : list) {
+                offer(heap, wc, k);
+            }
+        }
+        return drain(heap);
+    }
+
+    private static void offer(PriorityQueue<WordCount> heap, WordCount wc, int k) {
+        if (k <= 0) {
+            return;
+        }
+        if (heap.size() < k) {
+            heap.offer(wc);
+        } else if (ORDER.compare(wc, heap.peek()) < 0) {
+            heap.poll();
+            heap.offer(wc);
+        }
+    }
+
+    private static List<WordCount> drain(PriorityQueue<WordCount> heap) {
+        List<WordCount> result = new ArrayList<>(heap);
+        Collections.sort(result, ORDER);
+        return result;
+    }
+}
@@ -0,0 +1,159 @@
+package mapreduce;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a stream of WARC records (e.g. a Common Crawl WET file) and returns only
+ * the payload of its text records, each followed by a newline, so that neither
+ * the WARC headers nor the warcinfo record reach the tokenizer and no word
+ * straddles two records.
+ *
+ * The header block of every record is parsed for WARC-Type and Content-Length;
+ * the payload is then read (or skipped) by length, never scanned for the next
+ * record. The stream must start at a record start.
+ */
+public final class WarcBodyInputStream extends InputStream {
+    // Record type carrying the extracted text in WET files
+    static final String TEXT_RECORD = "conversion";
+    // Header lines longer than this are truncated (only their start is parsed)
+    private static final int MAX_HEADER_LINE = 8 * 1024;
+
+    private final InputStream in;
+    private final StringBuilder line = new StringBuilder();
+    private long remaining;
+    private boolean separator;
+    private long records;
+
+    public WarcBodyInputStream(InputStream in) {
+        this.in = new BufferedInputStream(in, FileSplits.STREAM_BUFFER);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (remaining == 0) {
+            if (separator) {
+                separator = false;
+                b[off] = '\n';
+                return 1;
+            }
+            if (!nextRecord()) {
+                return -1;
+            }
+        }
+        int n = in.read(b, off, (int) Math.min(len, remaining));
+        if (n < 0) {
+            throw new EOFException("Truncated WARC record: " + remaining + " bytes missing");
+        }
+        remaining -= n;
+        separator = remaining == 0;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(remaining, in.available());
+    }
+
+    /**
+     * Number of text records read so far.
+     */
+    public long records() {
+        return records;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Parse the next header block and position the stream on its payload; records that
+     * are not text are skipped. Returns false at the end of the input.
+     */
+    private boolean nextRecord() throws IOException {
+        while (true) {
+            // Blank lines separate a payload from the next record
+            String version;
+            do {
+                version = readLine();
+                if (version == null) {
+                    return false;
+                }
+            } while (version.isEmpty());
+            if (!version.startsWith("WARC/")) {
+                throw new IOException("Not a WARC record start: " + version);
+            }
+            String type = null;
+            long length = -1;
+            String header;
+            while ((header = readLine()) != null && !header.isEmpty()) {
+                int colon = header.indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                String name = header.substring(0, colon).trim();
+                if (name.equalsIgnoreCase("WARC-Type")) {
+                    type = header.substring(colon + 1).trim();
+                } else if (name.equalsIgnoreCase("Content-Length")) {
+                    try {
+                        length = Long.parseLong(header.substring(colon + 1).trim());
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Invalid WARC Content-Length: " + header);
+                    }
+                }
+            }
+            if (length < 0) {
+                throw new IOException("WARC record without Content-Length");
+            }
+            if (TEXT_RECORD.equals(type)) {
+                records++;
+                remaining = length;
+                if (length > 0) {
+                    return true;
+                }
+            } else {
+                skipFully(length);
+            }
+        }
+    }
+
+    /**
+     * Next header line without its line terminator, or null at the end of the input.
+     * Header fields are ASCII, bytes are mapped one to one to chars.
+     */
+    private String readLine() throws IOException {
+        line.setLength(0);
+        int c;
+        while ((c = in.read()) >= 0 && c != '\n') {
+            if (c != '\r' && line.length() < MAX_HEADER_LINE) {
+                line.append((char) c);
+            }
+        }
+        return c < 0 && line.length() == 0 ? null : line.toString();
+    }
+
+    private void skipFully(long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException("Truncated WARC record: " + n + " bytes missing");
+                }
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package mapreduce;
+
+/**
+ * A (word, count) pair, as returned in result lists.
+ */
+public final class WordCount {
+    private final String word;
+    private final long count;
+
+    public WordCount(String word, long count) {
+        this.word = word;
+        this.count = count;
+    }
+
+    public String getWord() {
+        return word;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return word + ": " + count;
+    }
+}
@@ -0,0 +1,336 @@
+package mapreduce;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Open-addressing word counter specialized for byte keys and primitive counts.
+ *
+ * Keys are stored back to back in a single byte arena, and each entry keeps its
+ * arena offset, length, hash and count in parallel primitive arrays (dense, in
+ * insertion order). A separate power-of-two slot table maps hashes to entries
+ * with linear probing. Incrementing an existing word therefore allocates
+ * nothing, and a new word only costs its bytes in the arena.
+ *
+ * The stored hash is the one String.hashCode() gives for the same ASCII word,
+ * so partitioning by hash agrees with the String-keyed code paths. Entry i
+ * (0 <= i < size()) can be read through the package-private accessors, which
+ * the shuffle and reduce code use to combine counters without iterators.
+ *
+ * Not thread-safe.
+ */
+public final class WordCounter {
+
+    /**
+     * Receives the entries of a counter; the key is a slice of the arena.
+     */
+    public interface EntryVisitor {
+        void visit(byte[] arena, int off, int len, long count);
+    }
+
+    private byte[] arena;
+    private int arenaSize;
+    private int[] offsets;
+    private int[] lengths;
+    private int[] hashes;
+    private long[] counts;
+    private int size;
+    // slot -> entry index + 1, 0 for an empty slot
+    private int[] slots;
+    private int mask;
+
+    public WordCounter() {
+        this(1024);
+    }
+
+    public WordCounter(int expectedWords) {
+        int capacity = Math.max(16, expectedWords);
+        int tableSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        arena = new byte[capacity * 8];
+        offsets = new int[capacity];
+        lengths = new int[capacity];
+        hashes = new int[capacity];
+        counts = new long[capacity];
+        slots = new int[tableSize];
+        mask = tableSize - 1;
+    }
+
+    /**
+     * Same value as String.hashCode() for the ASCII string made of these bytes.
+     */
+    public static int hash(byte[] b, int off, int len) {
+        int h = 0;
+        for (int i = off, end = off + len; i < end; i++) {
+            h = 31 * h + (b[i] & 0xFF);
+        }
+        return h;
+    }
+
+    public void add(byte[] b, int off, int len) {
+        add(b, off, len, hash(b, off, len), 1);
+    }
+
+    public void add(byte[] b, int off, int len, long delta) {
+        add(b, off, len, hash(b, off, len), delta);
+    }
+
+    public void add(String word, long delta) {
+        byte[] b = word.getBytes(StandardCharsets.ISO_8859_1);
+        add(b, 0, b.length, hash(b, 0, b.length), delta);
+    }
+
+    /**
+     * Add delta to the count of a key whose hash has already been computed.
+     */
+    void add(byte[] b, int off, int len, int h, long delta) {
+        int slot = mix(h) & mask;
+        int e;
+        while ((e = slots[slot]) != 0) {
+            e--;
+            if (hashes[e] == h && lengths[e] == len && keyEquals(e, b, off, len)) {
+                counts[e] += delta;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = insert(b, off, len, h, delta) + 1;
+        if (size * 4 > slots.length * 3) {
+            rehash(slots.length * 2);
+        }
+    }
+
+    /**
+     * Add entry i of another counter to this one.
+     */
+    void add(WordCounter other, int i) {
+        add(other.arena, other.offsets[i], other.lengths[i], other.hashes[i], other.counts[i]);
+    }
+
+    /**
+     * Bulk merge: add every count of other to this counter.
+     */
+    public void addAll(WordCounter other) {
+        if (size == 0 && other.size > 0) {
+            ensureCapacity(other.size, other.arenaSize);
+        }
+        for (int i = 0; i < other.size; i++) {
+            add(other.arena, other.offsets[i], other.lengths[i], other.hashes[i], other.counts[i]);
+        }
+    }
+
+    public long get(byte[] b, int off, int len) {
+        return get(b, off, len, hash(b, off, len));
+    }
+
+    /**
+     * Count of a key whose hash has already been computed (0 if absent).
+     */
+    long get(byte[] b, int off, int len, int h) {
+        int slot = mix(h) & mask;
+        int e;
+        while ((e = slots[slot]) != 0) {
+            e--;
+            if (hashes[e] == h && lengths[e] == len && keyEquals(e, b, off, len)) {
+                return counts[e];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return 0;
+    }
+
+    public long get(String word) {
+        byte[] b = word.getBytes(StandardCharsets.ISO_8859_1);
+        return get(b, 0, b.length);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(slots, 0);
+        size = 0;
+        arenaSize = 0;
+    }
+
+    public void forEach(EntryVisitor visitor) {
+        for (int i = 0; i < size; i++) {
+            visitor.visit(arena, offsets[i], lengths[i], counts[i]);
+        }
+    }
+
+    /**
+     * Snapshot of all entries as (word, count) pairs, in insertion order.
+     */
+    public List<WordCount> toList() {
+        List<WordCount> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(new WordCount(word(i), counts[i]));
+        }
+        return list;
+    }
+
+    // ---- Entry accessors, 0 <= i < size() ----
+
+    String word(int i) {
+        return new String(arena, offsets[i], lengths[i], StandardCharsets.ISO_8859_1);
+    }
+
+    byte[] arena() {
+        return arena;
+    }
+
+    int offset(int i) {
+        return offsets[i];
+    }
+
+    int length(int i) {
+        return lengths[i];
+    }
+
+    int hash(int i) {
+        return hashes[i];
+    }
+
+    long count(int i) {
+        return counts[i];
+    }
+
+    /**
+     * Approximate heap bytes used by the current entries (keys, entry arrays and slots).
+     */
+    long usedBytes() {
+        return arenaSize + (long) size * 28;
+    }
+
+    /**
+     * Entry indexes sorted by key, bytes compared unsigned, as {@link #compareKeys} orders them.
+     */
+    int[] sortedEntries() {
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        mergeSort(order, new int[size], 0, size);
+        return order;
+    }
+
+    /**
+     * Lexicographic order of two keys on unsigned bytes, a prefix first.
+     */
+    static int compareKeys(byte[] a, int aOff, int aLen, byte[] b, int bOff, int bLen) {
+        int n = Math.min(aLen, bLen);
+        for (int i = 0; i < n; i++) {
+            int c = (a[aOff + i] & 0xFF) - (b[bOff + i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return aLen - bLen;
+    }
+
+    // ---- Internals ----
+
+    private boolean keyEquals(int e, byte[] b, int off, int len) {
+        byte[] a = arena;
+        int o = offsets[e];
+        for (int i = 0; i < len; i++) {
+            if (a[o + i] != b[off + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int insert(byte[] b, int off, int len, int h, long delta) {
+        growArrays(size + 1, arenaSize + len);
+        System.arraycopy(b, off, arena, arenaSize, len);
+        int e = size++;
+        offsets[e] = arenaSize;
+        lengths[e] = len;
+        hashes[e] = h;
+        counts[e] = delta;
+        arenaSize += len;
+        return e;
+    }
+
+    private void ensureCapacity(int entries, int arenaBytes) {
+        growArrays(entries, arenaBytes);
+        int tableSize = slots.length;
+        while ((long) entries * 4 > (long) tableSize * 3) {
+            tableSize *= 2;
+        }
+        if (tableSize != slots.length) {
+            rehash(tableSize);
+        }
+    }
+
+    private void growArrays(int entries, int arenaBytes) {
+        if (entries > offsets.length) {
+            int capacity = Math.max(entries, offsets.length * 2);
+            offsets = Arrays.copyOf(offsets, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+        }
+        if (arenaBytes > arena.length) {
+            long grown = Math.max((long) arenaBytes, (long) arena.length * 2);
+            arena = Arrays.copyOf(arena, (int) Math.min(grown, Integer.MAX_VALUE - 8));
+        }
+    }
+
+    private void mergeSort(int[] order, int[] tmp, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(order, tmp, from, mid);
+        mergeSort(order, tmp, mid, to);
+        int i = from, j = mid, k = from;
+        while (i < mid && j < to) {
+            int a = order[i], b = order[j];
+            if (compareKeys(arena, offsets[a], lengths[a], arena, offsets[b], lengths[b]) <= 0) {
+                tmp[k++] = order[i++];
+            } else {
+                tmp[k++] = order[j++];
+            }
+        }
+        while (i < mid) {
+            tmp[k++] = order[i++];
+        }
+        while (j < to) {
+            tmp[k++] = order[j++];
+        }
+        System.arraycopy(tmp, from, order, from, to - from);
+    }
+
+    private void rehash(int tableSize) {
+        int[] table = new int[tableSize];
+        int m = tableSize - 1;
+        for (int e = 0; e < size; e++) {
+            int slot = mix(hashes[e]) & m;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & m;
+            }
+            table[slot] = e + 1;
+        }
+        slots = table;
+        mask = m;
+    }
+
+    // The polynomial String hash clusters badly in the low bits, spread it first (murmur3 finalizer)
+    static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -1,14 +1,12 @@
 package mapreduce;
 
-import java.util.HashMap;
-
 public class WordFrequencyThread implements Runnable {
     private String inputFile;
-    private HashMap<String, Integer> wordFrequency;
+    private WordCounter wordFrequency;
 
     public WordFrequencyThread(String inputFile) {
         this.inputFile = inputFile;
-        this.wordFrequency = new HashMap<>();
+        this.wordFrequency = new WordCounter();
     }
 
     @Override
@@ -20,18 +18,18 @@ public class WordFrequencyThread implements Runnable {
         sb.append("Top 20 most frequent words for file: ")
                 .append(inputFile)
                 .append("\n");
-        wordFrequency.entrySet().stream()
-                .sorted((e1, e2) -> e2.getValue().compareTo(e1.getValue()))
+        wordFrequency.toList().stream()
+                .sorted((e1, e2) -> Long.compare(e2.getCount(), e1.getCount()))
                 .limit(20)
-                .forEach(e -> sb.append(e.getKey())
+                .forEach(e -> sb.append(e.getWord())
                         .append(": ")
-                        .append(e.getValue())
+                        .append(e.getCount())
                         .append("\n"));
         System.out.println(sb.toString());
         // System.out.println("Thread finished for file: " + inputFile);
     }
 
-    public HashMap<String, Integer> getWordFrequency() {
+    public WordCounter getWordFrequency() {
         return wordFrequency;
     }
 }
\ No newline at end of file
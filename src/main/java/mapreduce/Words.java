@@ -3,7 +3,9 @@ package mapreduce;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 
 public class Words {
     public int countWords(String inputFile) {
@@ -22,16 +24,16 @@ public class Words {
         }
         return wordCount;
     }
-    public HashMap<String, Integer> frequencyWords(String inputFile){
-        HashMap<String, Integer> wordFrequency = new HashMap<>();
-        try (BufferedReader reader = new BufferedReader(new FileReader(inputFile))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] words = line.split("\\s+");
-                for (String word : words) {
-                    wordFrequency.put(word, wordFrequency.getOrDefault(word, 0) + 1);
-                }
+    public WordCounter frequencyWords(String inputFile){
+        WordCounter wordFrequency = new WordCounter();
+        Tokenizer tokenizer = new Tokenizer(wordFrequency::add);
+        try (InputStream in = Files.newInputStream(Paths.get(inputFile))) {
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                tokenizer.feed(buffer, 0, n);
             }
+            tokenizer.finish();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -2,6 +2,8 @@ package mapreduce;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
@@ -10,16 +12,67 @@ public class WorkerMultiNodes {
     private final String masterHost;
     private final int masterPort;
     private final int listenPort;
-    private final Map<String, Integer> localMap = new HashMap<>();
-    private final Map<String, List<Integer>> partitions = new ConcurrentHashMap<>();
+    // Budget mémoire partagé en trois parts entre la tâche en cours, localMap et partitions : au-delà,
+    // les compteurs déversent des runs triés sur disque, fusionnés au moment de les lire.
+    // La part de la tâche couvre aussi ses tranches, vivantes en même temps que son compteur :
+    // moitié pour le compteur, moitié répartie entre les threads
+    private final long budget = SpillingCounter.budgetFromSystemProperty() / 3;
+    private final Path spillDir = SpillingCounter.spillDirFromSystemProperty();
+    private final SpillingCounter localMap = new SpillingCounter(budget, spillDir);
+    // Cache des comptes par tâche (-Dmapreduce.cache=<dossier>) : une plage déjà comptée d'un fichier
+    // inchangé (même taille, même date de modification) est relue au lieu d'être recomptée
+    private final ResultCache cache = ResultCache.fromSystemProperty();
+    // Parallélisme local : chaque tâche Map est découpée entre ces threads, et la partition reçue
+    // est répartie en autant de fragments, réduits en parallèle
+    private final int threads = Math.max(1, Integer.getInteger("mapreduce.workerThreads",
+            Runtime.getRuntime().availableProcessors()));
+    private final ExecutorService pool = Executors.newFixedThreadPool(threads);
+    // En dessous, une tâche Map n'est pas découpée entre plusieurs threads
+    static final long MIN_SLICE_BYTES = 1 << 20;
+    // Combine côté réception : les comptes reçus sont additionnés directement, sous le verrou de leur fragment
+    private final SpillingCounter[] partitions = new SpillingCounter[threads];
     private final List<InetSocketAddress> workerAddrs = new ArrayList<>();
     private int myIndex = -1;
     private ServerSocket peerServer;  // Serveur de shuffle
+    // Connexions persistantes vers les autres Workers, ouvertes au premier shuffle
+    private final ShuffleProtocol.Codec codec = ShuffleProtocol.Codec.fromSystemProperty();
+    private final Map<Integer, ShuffleProtocol.Sender> peers = new HashMap<>();
+    // Tâches Map exécutées hors du thread de commandes, pour pouvoir les annuler
+    private final ExecutorService mapExecutor = Executors.newSingleThreadExecutor();
+    private Future<?> currentMap;
+    private volatile int cancelledTask = -1;
+    // Résultats de tâches terminées, en attente de COMMIT ou ABORT du Master
+    private final Map<Integer, SpillingCounter> finishedTasks = new ConcurrentHashMap<>();
+    // Mode approximatif (MAP ... approx) : résumé de taille fixe des clés lourdes au lieu des comptes exacts
+    private final HeavyHitters localSummary = HeavyHitters.fromSystemProperty();
+    private final Map<Integer, HeavyHitters> finishedSummaries = new ConcurrentHashMap<>();
+    // Mode pipeliné (MAP ... pipe) : chaque tâche validée part vers les réducteurs pendant que les
+    // tâches suivantes tournent ; un seul thread d'envoi, seul à toucher aux connexions des pairs
+    private volatile boolean pipelined;
+    private final ExecutorService streamExecutor = Executors.newSingleThreadExecutor();
+    private Partitioner partitioner;
+    // Un permis par marqueur de fin de partition reçu d'un pair
+    private final Semaphore partitionsReceived = new Semaphore(0);
+    // Première cause d'échec du shuffle (pair injoignable, connexion coupée), null tant qu'il n'y en a pas
+    private volatile String shuffleFailure;
+    private final long shuffleTimeoutMs = Long.getLong("mapreduce.shuffleTimeoutMs", 600000);
+    // Compteurs et durées de ce Worker, envoyés au Master en fin de job (SIGNAL:METRICS)
+    private final Metrics metrics = new Metrics();
+    // Battement de cœur vers le Master, qui considère un Worker silencieux comme mort
+    private final long heartbeatMs = Long.getLong("mapreduce.heartbeatMs", 1000);
+    private final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "heartbeat");
+        t.setDaemon(true);
+        return t;
+    });
 
     public WorkerMultiNodes(String masterHost, int masterPort, int listenPort) {
         this.masterHost = masterHost;
         this.masterPort = masterPort;
         this.listenPort = listenPort;
+        for (int i = 0; i < threads; i++) {
+            partitions[i] = new SpillingCounter(budget / threads, spillDir);
+        }
     }
 
     /**
@@ -35,12 +88,12 @@ public class WorkerMultiNodes {
             return;
         }
 
-        // Thread d'accept pour le shuffle
+        // Thread d'accept pour le shuffle : un thread de lecture par pair connecté
         new Thread(() -> {
             while (!peerServer.isClosed()) {
                 try {
                     Socket s = peerServer.accept();
-                    receivePartition(s);
+                    new Thread(() -> receivePartition(s)).start();
                 } catch (IOException e) {
                     System.err.println("Shuffle accept error: " + e.getMessage());
                     break;
@@ -69,81 +122,628 @@ public class WorkerMultiNodes {
              BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
              PrintWriter out = new PrintWriter(sock.getOutputStream(), true)) {
             out.println("REGISTER " + listenPort);
+            heartbeat.scheduleAtFixedRate(() -> out.println("HEARTBEAT"), heartbeatMs, heartbeatMs, TimeUnit.MILLISECONDS);
+            out.println("SIGNAL:TASK_REQUEST");
             String req;
             while ((req = in.readLine()) != null) {
                 String[] parts = req.split(" ");
                 switch (parts[0]) {
                     case "MAP":
-                        map(parts[1], out);
+                        // MAP <id> <offset> <length> <exact|approx|pipe> <path> : le chemin, dernier, peut
+                        // contenir des espaces
+                        String[] map = req.split(" ", 6);
+                        int task = Integer.parseInt(map[1]);
+                        long offset = Long.parseLong(map[2]);
+                        long length = Long.parseLong(map[3]);
+                        String path = map[5];
+                        boolean approximate = map[4].equals("approx");
+                        if (map[4].equals("pipe") && !pipelined) {
+                            // Aucune statistique n'existe avant la fin du map : partitionnement par hachage
+                            partitioner = Partitioner.hash(workerAddrs.size());
+                            pipelined = true;
+                        }
+                        if (cancelledTask == task) {
+                            cancelledTask = -1;
+                        }
+                        currentMap = mapExecutor.submit(() -> map(task, path, offset, length, approximate, out));
+                        break;
+                    case "COMMIT":
+                        // Notre copie de la tâche l'a emporté : ses comptes rejoignent la carte locale
+                        HeavyHitters summary = finishedSummaries.remove(Integer.parseInt(parts[1]));
+                        if (summary != null) {
+                            localSummary.addAll(summary);
+                            metrics.increment("map.committed");
+                        }
+                        if (pipelined) {
+                            SpillingCounter result = finishedTasks.remove(Integer.parseInt(parts[1]));
+                            if (result != null) {
+                                metrics.increment("map.committed");
+                                streamExecutor.submit(() -> stream(result));
+                            }
+                            out.println("SIGNAL:TASK_REQUEST");
+                            break;
+                        }
+                        try (SpillingCounter result = finishedTasks.remove(Integer.parseInt(parts[1]))) {
+                            if (result != null) {
+                                localMap.addAll(result);
+                                metrics.increment("map.committed");
+                            }
+                        } catch (IOException | UncheckedIOException e) {
+                            System.err.println("Cannot merge map output: " + e.getMessage());
+                        }
+                        out.println("SIGNAL:TASK_REQUEST");
+                        break;
+                    case "ABORT":
+                        dropTask(Integer.parseInt(parts[1]));
+                        metrics.increment("map.aborted");
+                        out.println("SIGNAL:TASK_REQUEST");
+                        break;
+                    case "CANCEL":
+                        cancelledTask = Integer.parseInt(parts[1]);
+                        break;
+                    case "SAMPLE":
+                        // Statistiques de charge par clé pour le plan de partitionnement du Master
+                        awaitMap();
+                        dropFinishedTasks();
+                        Partitioner.Sampler sampler = new Partitioner.Sampler();
+                        try {
+                            localMap.forEach(sampler);
+                        } catch (IOException e) {
+                            System.err.println("Cannot read map output: " + e.getMessage());
+                        }
+                        out.println("SIGNAL:SAMPLE " + sampler.encode());
                         break;
                     case "SHUFFLE":
+                        // SHUFFLE [<plan>] : sans plan, partitionnement par hachage
+                        awaitMap();
+                        dropFinishedTasks();
+                        if (pipelined) {
+                            // Les sorties validées sont déjà parties : il ne reste que les marqueurs de fin
+                            long start = System.nanoTime();
+                            try {
+                                streamExecutor.submit(this::endPartitions).get();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                break;
+                            } catch (ExecutionException e) {
+                                System.err.println("Shuffle stream failed: " + e.getCause());
+                                shuffleFailed("stream failed: " + e.getCause());
+                            }
+                            metrics.time("shuffle.send", start);
+                            awaitPartitions(out, start);
+                            break;
+                        }
+                        partitioner = parts.length > 1
+                                ? Partitioner.decode(parts[1], workerAddrs.size())
+                                : Partitioner.hash(workerAddrs.size());
                         shuffle(out);
                         break;
                     case "REDUCE":
-                        reduce(out);
+                        // REDUCE <k> [<outputDir>]
+                        reduce(out, Integer.parseInt(parts[1]), parts.length > 2 ? Paths.get(parts[2]) : null);
+                        break;
+                    case "SKETCH":
+                        // Mode approximatif : le résumé fusionné de toutes nos tâches remplace shuffle et reduce
+                        awaitMap();
+                        dropFinishedTasks();
+                        String encoded = localSummary.encode();
+                        metrics.increment("sketch.bytesSent", encoded.length());
+                        out.println("SIGNAL:SKETCH " + encoded);
+                        out.println("SIGNAL:METRICS " + metrics.toJson());
                         break;
                 }
             }
         } catch (IOException e) {
             System.err.println("Master connection error: " + e.getMessage());
         } finally {
+            heartbeat.shutdownNow();
+            mapExecutor.shutdownNow();
+            streamExecutor.shutdownNow();
             closePeerServer();
+            dropFinishedTasks();
+            pool.shutdownNow();
+            localMap.close();
+            for (SpillingCounter shard : partitions) {
+                shard.close();
+            }
+        }
+    }
+
+    private void map(int task, String filepath, long offset, long length, boolean approximate, PrintWriter out) {
+        // Lecture en flux à travers un tampon fixe par thread : mémoire bornée quelle que soit la taille.
+        // La plage est découpée sur des débuts de ligne, chaque morceau est compté dans un compteur
+        // propre à son thread (aucun verrou), puis les compteurs sont fusionnés pour le shuffle.
+        long start = System.nanoTime();
+        SpillingCounter counter = new SpillingCounter(budget / 2, spillDir);
+        HeavyHitters summary = approximate ? HeavyHitters.fromSystemProperty() : null;
+        List<Future<MapSlice>> slices = new ArrayList<>();
+        boolean completed = true;
+        long tokens = 0;
+        ResultCache.Key key = null;
+        try (FileChannel channel = FileChannel.open(Paths.get(filepath), StandardOpenOption.READ)) {
+            long end = Math.min(channel.size(), offset + length);
+            if (cache != null && !approximate) {
+                // Clé prise avant la lecture : un fichier modifié pendant la tâche sera recompté
+                key = ResultCache.key(Paths.get(filepath), offset, end);
+                if (cache.load(key, counter)) {
+                    metrics.increment("map.cached");
+                    finishedTasks.put(task, counter);
+                    out.println("SIGNAL:MAP_DONE " + task);
+                    return;
+                }
+            }
+            int parts = (int) Math.max(1, Math.min(threads, (end - offset) / MIN_SLICE_BYTES));
+            // Même détection que le Master : la tâche commence sur un début de ligne,
+            // d'enregistrement WARC ou de membre gzip selon le format
+            InputFormat format = InputFormat.of(channel);
+            long[] bounds = format.split(channel, offset, end, parts);
+            for (int i = 0; i < parts; i++) {
+                long from = bounds[i];
+                long to = bounds[i + 1];
+                slices.add(pool.submit(() -> mapSlice(channel, format, from, to, approximate, task)));
+            }
+            for (Future<MapSlice> f : slices) {
+                MapSlice slice = f.get();
+                completed &= slice.completed;
+                tokens += slice.tokens;
+                if (summary != null) {
+                    summary.addAll(slice.summary);
+                } else {
+                    counter.addAll(slice.counter);
+                }
+            }
+            metrics.increment("map.bytes", completed ? end - offset : 0);
+            metrics.record("map.taskBytes", end - offset);
+            metrics.record("map.taskThreads", parts);
+        } catch (IOException | UncheckedIOException | ExecutionException | InterruptedException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            System.err.println("Map read error on " + filepath + ": "
+                    + (e instanceof ExecutionException ? e.getCause() : e.getMessage()));
+            metrics.increment("map.failed");
+            closeSlices(slices);
+            counter.close();
+            out.println("SIGNAL:MAP_FAILED " + task);
+            out.println("SIGNAL:TASK_REQUEST");
+            return;
+        }
+        if (completed) {
+            metrics.increment("map.tokens", tokens);
+            metrics.time("map.task", start);
+            if (summary != null) {
+                counter.close();
+                finishedSummaries.put(task, summary);
+            } else {
+                if (key != null) {
+                    try {
+                        metrics.increment("cache.storedBytes", cache.store(key, counter));
+                    } catch (IOException | UncheckedIOException e) {
+                        System.err.println("Cannot cache map task " + task + ": " + e.getMessage());
+                    }
+                }
+                finishedTasks.put(task, counter);
+            }
+            out.println("SIGNAL:MAP_DONE " + task);
+        } else {
+            // Une autre copie a déjà terminé cette tâche
+            metrics.increment("map.cancelled");
+            counter.close();
+            out.println("SIGNAL:TASK_REQUEST");
         }
     }
 
-    private void map(String filepath, PrintWriter out) {
+    /**
+     * Compte les mots des octets [from, to) dans un compteur propre au thread appelant.
+     */
+    private MapSlice mapSlice(FileChannel channel, InputFormat format, long from, long to, boolean approximate,
+                              int task) throws IOException {
+        MapSlice slice = new MapSlice(approximate ? null : new SpillingCounter(budget / 2 / threads, spillDir),
+                approximate ? HeavyHitters.fromSystemProperty() : null);
+        Tokenizer tokenizer = new Tokenizer((b, off, len) -> {
+            if (slice.summary != null) {
+                slice.summary.add(b, off, len);
+            } else {
+                slice.counter.add(b, off, len);
+            }
+            slice.tokens++;
+        });
         try {
-            byte[] bytes = Files.readAllBytes(Paths.get(filepath));
-            for (String word : new String(bytes).split("\\s+")) {
-                localMap.merge(word, 1, Integer::sum);
+            slice.completed = format.read(channel, from, to, tokenizer, () -> cancelledTask == task);
+        } catch (IOException | UncheckedIOException e) {
+            slice.close();
+            throw e;
+        }
+        return slice;
+    }
+
+    private static void closeSlices(List<Future<MapSlice>> slices) {
+        for (Future<MapSlice> f : slices) {
+            try {
+                f.get().close();
+            } catch (InterruptedException | ExecutionException ignored) {
+                // Le morceau a échoué et fermé son compteur lui-même
             }
-        } catch (IOException e) {
-            System.err.println("Map read error on " + filepath + ": " + e.getMessage());
         }
-        out.println("SIGNAL:MAP_DONE");
+    }
+
+    /**
+     * Résultat d'un morceau de tâche Map : compteur exact ou résumé approximatif.
+     */
+    private static final class MapSlice implements AutoCloseable {
+        final SpillingCounter counter;
+        final HeavyHitters summary;
+        long tokens;
+        boolean completed;
+
+        MapSlice(SpillingCounter counter, HeavyHitters summary) {
+            this.counter = counter;
+            this.summary = summary;
+        }
+
+        @Override
+        public void close() {
+            if (counter != null) {
+                counter.close();
+            }
+        }
+    }
+
+    private void dropTask(int task) {
+        finishedSummaries.remove(task);
+        SpillingCounter result = finishedTasks.remove(task);
+        if (result != null) {
+            result.close();
+        }
+    }
+
+    private void dropFinishedTasks() {
+        for (Integer task : new ArrayList<>(finishedTasks.keySet())) {
+            dropTask(task);
+        }
+        finishedSummaries.clear();
+    }
+
+    /**
+     * Attend la fin de la tâche Map en cours (annulée si le Master l'a demandé).
+     */
+    private void awaitMap() {
+        if (currentMap == null) {
+            return;
+        }
+        try {
+            currentMap.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.err.println("Map task failed: " + e.getCause());
+        }
+        currentMap = null;
     }
 
     private void shuffle(PrintWriter out) {
-        localMap.forEach((k, c) -> {
-            int t = Math.floorMod(k.hashCode(), workerAddrs.size());
+        long start = System.nanoTime();
+        send(localMap);
+        if (localMap.spilledBytes() > 0) {
+            System.out.println("Map output spilled to disk: " + localMap.spilledBytes() + " bytes");
+        }
+        metrics.increment("map.spilledBytes", localMap.spilledBytes());
+        localMap.clear();
+        endPartitions();
+        metrics.time("shuffle.send", start);
+        awaitPartitions(out, start);
+    }
+
+    /**
+     * Envoie chaque clé d'un compteur à son Worker réducteur (ou à notre propre partition).
+     */
+    private void send(SpillingCounter counter) {
+        ShuffleProtocol.Sender[] senders = new ShuffleProtocol.Sender[workerAddrs.size()];
+        long[] bytesBefore = new long[senders.length];
+        long[] keysSent = new long[senders.length];
+        for (int t = 0; t < senders.length; t++) {
+            if (t != myIndex) {
+                senders[t] = peer(t);
+                bytesBefore[t] = senders[t] == null ? 0 : senders[t].bytesSent();
+            }
+        }
+        // Parcours fusionné des runs déversés : chaque mot n'est envoyé qu'une fois, avec son total
+        try {
+            counter.forEach((b, off, len, count) -> {
+                int h = WordCounter.hash(b, off, len);
+                int t = partitioner.partition(b, off, len, h, myIndex);
+                keysSent[t]++;
+                if (t == myIndex) {
+                    addToPartition(b, off, len, h, count);
+                } else if (senders[t] != null) {
+                    try {
+                        senders[t].add(b, off, len, count);
+                    } catch (IOException e) {
+                        System.err.println("Shuffle send error to " + workerAddrs.get(t) + ": " + e.getMessage());
+                        shuffleFailed("send error to " + workerAddrs.get(t));
+                        senders[t] = null;
+                        dropPeer(t);
+                    }
+                }
+            });
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Cannot read map output: " + e.getMessage());
+            shuffleFailed("cannot read map output");
+        }
+        for (int t = 0; t < senders.length; t++) {
+            metrics.increment("shuffle.keysSent." + t, keysSent[t]);
+            if (senders[t] != null) {
+                metrics.increment("shuffle.bytesSent." + t, senders[t].bytesSent() - bytesBefore[t]);
+            }
+        }
+    }
+
+    /**
+     * Mode pipeliné : envoie la sortie d'une tâche validée, sur le thread d'envoi.
+     */
+    private void stream(SpillingCounter result) {
+        long start = System.nanoTime();
+        try (SpillingCounter counter = result) {
+            metrics.increment("map.spilledBytes", counter.spilledBytes());
+            send(counter);
+        }
+        metrics.time("shuffle.stream", start);
+    }
+
+    /**
+     * Marqueur de fin de partition vers chaque pair, même sans données.
+     */
+    private void endPartitions() {
+        for (int t = 0; t < workerAddrs.size(); t++) {
             if (t == myIndex) {
-                partitions.computeIfAbsent(k, kk -> new ArrayList<>()).add(c);
-            } else {
-                InetSocketAddress a = workerAddrs.get(t);
-                try (Socket s = new Socket(a.getHostString(), a.getPort());
-                     PrintWriter pw = new PrintWriter(s.getOutputStream(), true)) {
-                    pw.println(k + ":" + c);
+                continue;
+            }
+            ShuffleProtocol.Sender sender = peer(t);
+            if (sender != null) {
+                try {
+                    long before = sender.bytesSent();
+                    sender.endPartition();
+                    metrics.increment("shuffle.bytesSent." + t, sender.bytesSent() - before);
                 } catch (IOException e) {
-                    System.err.println("Shuffle send error to " + a + ": " + e.getMessage());
+                    System.err.println("Shuffle send error to " + workerAddrs.get(t) + ": " + e.getMessage());
+                    shuffleFailed("send error to " + workerAddrs.get(t));
+                    dropPeer(t);
                 }
             }
-        });
+        }
+    }
+
+    /**
+     * Prêt seulement quand chaque pair a envoyé sa fin de partition. Si un échec du shuffle a été
+     * constaté, ou si les fins de partition n'arrivent pas avant mapreduce.shuffleTimeoutMs,
+     * signale SHUFFLE_FAILED : des clés manqueraient au reduce.
+     */
+    private void awaitPartitions(PrintWriter out, long start) {
+        String failure;
         try {
-            Thread.sleep(500);
-        } catch (InterruptedException ignored) {}
+            boolean received = partitionsReceived.tryAcquire(workerAddrs.size() - 1, shuffleTimeoutMs,
+                    TimeUnit.MILLISECONDS);
+            failure = received ? shuffleFailure : "no end of partition from every peer after " + shuffleTimeoutMs + " ms";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (failure != null) {
+            System.err.println("Shuffle failed: " + failure);
+            metrics.increment("shuffle.failed");
+            out.println("SIGNAL:SHUFFLE_FAILED " + failure);
+            return;
+        }
+        metrics.time("shuffle", start);
         out.println("SIGNAL:SHUFFLE_DONE");
     }
 
+    /**
+     * Le shuffle ne peut plus aboutir : garde la première cause et débloque awaitPartitions.
+     */
+    private void shuffleFailed(String reason) {
+        if (shuffleFailure == null) {
+            shuffleFailure = reason;
+        }
+        partitionsReceived.release(workerAddrs.size());
+    }
+
+    /**
+     * Connexion persistante vers le Worker t, ouverte si besoin.
+     */
+    private ShuffleProtocol.Sender peer(int t) {
+        ShuffleProtocol.Sender sender = peers.get(t);
+        if (sender != null && !sender.isClosed()) {
+            return sender;
+        }
+        InetSocketAddress a = workerAddrs.get(t);
+        try {
+            sender = new ShuffleProtocol.Sender(new Socket(a.getHostString(), a.getPort()), myIndex, codec);
+            peers.put(t, sender);
+            return sender;
+        } catch (IOException e) {
+            System.err.println("Shuffle connect error to " + a + ": " + e.getMessage());
+            shuffleFailed("cannot connect to " + a);
+            return null;
+        }
+    }
+
+    private void dropPeer(int t) {
+        ShuffleProtocol.Sender sender = peers.remove(t);
+        if (sender != null) {
+            try {
+                sender.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
     private void receivePartition(Socket s) {
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(s.getInputStream()))) {
-            String l;
-            while ((l = br.readLine()) != null) {
-                String[] kv = l.split(":");
-                partitions.computeIfAbsent(kv[0], xx -> new ArrayList<>()).add(Integer.parseInt(kv[1]));
+        try (Socket peer = s) {
+            ShuffleProtocol.receive(peer, new ShuffleProtocol.Listener() {
+                private long keysReceived;
+
+                @Override
+                public void entry(int sender, byte[] buf, int off, int len, long count) {
+                    addToPartition(buf, off, len, WordCounter.hash(buf, off, len), count);
+                    keysReceived++;
+                }
+
+                @Override
+                public void endOfPartition(int sender) {
+                    metrics.increment("shuffle.keysReceived." + sender, keysReceived);
+                    keysReceived = 0;
+                    partitionsReceived.release();
+                }
+            });
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Shuffle receive error: " + e.getMessage());
+            shuffleFailed("receive error: " + e.getMessage());
+        }
+    }
+
+    private void addToPartition(byte[] b, int off, int len, int h, long count) {
+        SpillingCounter shard = partitions[Math.floorMod(WordCounter.mix(h), threads)];
+        synchronized (shard) {
+            shard.add(b, off, len, h, count);
+        }
+    }
+
+    /**
+     * Réduit les fragments en parallèle et renvoie au Master, sur le canal de contrôle, le top k
+     * local, le nombre de clés, le total des comptes et les comptes partiels des clés chaudes :
+     * "SIGNAL:REDUCE_DONE <clés> <total> <mot=compte,...|-> <chaude=partiel,...|->".
+     * Le résultat complet n'est écrit que si le Master le demande, dans outputDir/part-NNNNN.
+     * Si un fragment ne peut être lu ou la sortie écrite, envoie "SIGNAL:REDUCE_FAILED <cause>"
+     * à la place : un résultat partiel ne doit pas passer pour complet.
+     */
+    private void reduce(PrintWriter out, int k, Path outputDir) {
+        // Les clés chaudes sont réparties sur plusieurs Workers : leurs comptes partiels
+        // sont envoyés au Master qui les additionne. Un fragment de partition par thread.
+        long start = System.nanoTime();
+        WordCounter hot = partitioner.hotKeys();
+        List<List<WordCount>> tops = new ArrayList<>();
+        StringBuilder partials = new StringBuilder();
+        long keys = 0;
+        long total = 0;
+        String failure = null;
+        try (Writer output = outputDir == null ? null : openOutput(outputDir)) {
+            List<Future<ShardResult>> shards = new ArrayList<>();
+            for (SpillingCounter shard : partitions) {
+                shards.add(pool.submit(() -> reduceShard(shard, hot, k, output)));
+            }
+            for (Future<ShardResult> shard : shards) {
+                try {
+                    ShardResult result = shard.get();
+                    tops.add(result.top);
+                    keys += result.keys;
+                    total += result.total;
+                    if (result.partials.length() > 0) {
+                        partials.append(partials.length() == 0 ? "" : ",").append(result.partials);
+                    }
+                } catch (ExecutionException e) {
+                    System.err.println("Cannot read partitions: " + e.getCause());
+                    if (failure == null) {
+                        failure = "cannot read partitions: " + e.getCause();
+                    }
+                }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
         } catch (IOException e) {
-            System.err.println("Shuffle receive error: " + e.getMessage());
+            System.err.println("Cannot write reduce output to " + outputDir + ": " + e.getMessage());
+            if (failure == null) {
+                failure = "cannot write reduce output to " + outputDir + ": " + e.getMessage();
+            }
+        }
+        if (failure != null) {
+            // Les fragments non réduits (sortie impossible, lecture interrompue) ne servent plus à rien
+            for (SpillingCounter shard : partitions) {
+                synchronized (shard) {
+                    shard.clear();
+                }
+            }
+            metrics.increment("reduce.failed");
+            out.println("SIGNAL:REDUCE_FAILED " + failure);
+            return;
         }
+        StringBuilder top = new StringBuilder();
+        for (WordCount wc : TopK.merge(tops, k)) {
+            top.append(top.length() == 0 ? "" : ",").append(wc.getWord()).append('=').append(wc.getCount());
+        }
+        metrics.increment("reduce.keys", keys);
+        metrics.increment("reduce.total", total);
+        metrics.time("reduce", start);
+        out.println("SIGNAL:REDUCE_DONE " + keys + " " + total
+                + " " + (top.length() == 0 ? "-" : top)
+                + " " + (partials.length() == 0 ? "-" : partials));
+        out.println("SIGNAL:METRICS " + metrics.toJson());
+    }
+
+    private Writer openOutput(Path outputDir) throws IOException {
+        Files.createDirectories(outputDir);
+        Path file = outputDir.resolve(String.format("part-%05d", myIndex));
+        System.out.println("Writing reduce output to " + file);
+        return Files.newBufferedWriter(file, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Réduit un fragment : top k de ses clés non chaudes, et si output n'est pas null,
+     * écriture de ses comptes finaux ("mot\tcompte") par blocs.
+     */
+    private ShardResult reduceShard(SpillingCounter shard, WordCounter hot, int k, Writer output) throws IOException {
+        ShardResult result = new ShardResult();
+        TopK.Selector selector = new TopK.Selector(k);
+        StringBuilder lines = new StringBuilder();
+        synchronized (shard) {
+            metrics.increment("reduce.spilledBytes", shard.spilledBytes());
+            shard.forEach((b, off, len, count) -> {
+                result.total += count;
+                if (!hot.isEmpty() && hot.get(b, off, len) != 0) {
+                    result.partials.append(result.partials.length() == 0 ? "" : ",")
+                            .append(new String(b, off, len, StandardCharsets.ISO_8859_1)).append('=').append(count);
+                    return;
+                }
+                result.keys++;
+                selector.visit(b, off, len, count);
+                if (output != null) {
+                    lines.append(new String(b, off, len, StandardCharsets.ISO_8859_1)).append('\t').append(count).append('\n');
+                    if (lines.length() >= 64 * 1024) {
+                        write(output, lines);
+                    }
+                }
+            });
+            shard.clear();
+        }
+        if (output != null) {
+            write(output, lines);
+        }
+        result.top = selector.result();
+        return result;
     }
 
-    private void reduce(PrintWriter out) {
-        partitions.forEach((k, list) ->
-                System.out.println(k + " -> " + list.stream().mapToInt(i -> i).sum())
-        );
-        out.println("SIGNAL:REDUCE_DONE");
+    private static void write(Writer output, StringBuilder lines) {
+        try {
+            synchronized (output) {
+                output.append(lines);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        lines.setLength(0);
+    }
+
+    private static final class ShardResult {
+        List<WordCount> top;
+        long keys;
+        long total;
+        final StringBuilder partials = new StringBuilder();
     }
 
     private void closePeerServer() {
+        for (Integer t : new ArrayList<>(peers.keySet())) {
+            dropPeer(t);
+        }
         try {
             if (peerServer != null && !peerServer.isClosed()) {
                 peerServer.close();